@@ -186,7 +186,6 @@ public class AutoGrader {
      */
     public void runningThread(KThread thread) {
 	privilege.tcb.associateThread(thread);
-	currentThread = thread;
     }
 
     /**
@@ -195,7 +194,7 @@ public class AutoGrader {
      * the thread to sleep and scheduling its TCB to be destroyed.
      */
     public void finishingCurrentThread() {
-	privilege.tcb.authorizeDestroy(currentThread);
+	privilege.tcb.authorizeDestroy(KThread.currentThread());
     }
 
     /**
@@ -274,6 +273,4 @@ public class AutoGrader {
 		   "security violation");
 	return true;
     }
-    
-    private KThread currentThread;
 }
@@ -0,0 +1,125 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * A benchmark of some part of Nachos. A benchmark is run from a kernel
+ * thread, and measures how long it takes to perform a number of operations,
+ * both in real time and in simulated time.
+ *
+ * <p>
+ * The operations are performed in <i>iterations</i>. The first few
+ * iterations are warmups, which give the JIT compiler a chance to compile the
+ * code being measured, and are not reported. The rest are timed separately,
+ * so that the mean and standard deviation of the time per operation can be
+ * reported.
+ */
+public abstract class Benchmark {
+    /**
+     * Allocate a new benchmark.
+     *
+     * @param	name		the name of the benchmark, as used in
+     *				<tt>Benchmark.names</tt>.
+     * @param	operations	the default number of operations per
+     *				iteration.
+     */
+    public Benchmark(String name, int operations) {
+	this.name = name;
+	this.operations = operations;
+    }
+
+    /**
+     * Return the name of this benchmark.
+     *
+     * @return	the name of this benchmark.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Run this benchmark and print the results.
+     *
+     * @param	warmups		the number of iterations to run before
+     *				measuring.
+     * @param	iterations	the number of iterations to measure.
+     * @param	operations	the number of operations per iteration, or 0
+     *				to use this benchmark's default.
+     */
+    public void run(int warmups, int iterations, int operations) {
+	if (operations <= 0)
+	    operations = this.operations;
+
+	for (int i=0; i<warmups; i++)
+	    iteration(operations);
+
+	reset();
+
+	double[] nanos = new double[iterations];
+	long startTicks = Machine.timer().getTime();
+
+	for (int i=0; i<iterations; i++) {
+	    long startTime = System.nanoTime();
+	    iteration(operations);
+	    nanos[i] = (double) (System.nanoTime() - startTime) / operations;
+	}
+
+	double ticks = (double) (Machine.timer().getTime() - startTicks)
+	    / ((long) iterations * operations);
+
+	double mean = 0;
+	for (int i=0; i<iterations; i++)
+	    mean += nanos[i] / iterations;
+
+	double variance = 0;
+	for (int i=0; i<iterations; i++)
+	    variance += (nanos[i]-mean) * (nanos[i]-mean) / iterations;
+
+	System.out.println(name + ": " + format(mean) + " +- "
+			   + format(Math.sqrt(variance)) + " ns/op, "
+			   + format(1e9 / mean) + " ops/s, "
+			   + format(ticks) + " ticks/op"
+			   + " (" + iterations + " x " + operations + " ops)");
+
+	String details = details();
+	if (details != null)
+	    System.out.println("    " + details);
+    }
+
+    /**
+     * Perform one iteration of this benchmark.
+     *
+     * @param	operations	the number of operations to perform.
+     */
+    protected abstract void iteration(int operations);
+
+    /**
+     * Forget anything measured by <tt>iteration()</tt> during the warmups.
+     * Benchmarks that report details should override this.
+     */
+    protected void reset() {
+    }
+
+    /**
+     * Return any measurements of this benchmark beyond the time per
+     * operation, or <tt>null</tt> if there are none.
+     *
+     * @return	a line describing further measurements, or <tt>null</tt>.
+     */
+    protected String details() {
+	return null;
+    }
+
+    /**
+     * Format a measurement to one decimal place.
+     *
+     * @param	value	the measurement to format.
+     * @return	the formatted measurement.
+     */
+    protected static String format(double value) {
+	return String.format("%.1f", value);
+    }
+
+    private String name;
+    private int operations;
+}
@@ -0,0 +1,392 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that runs benchmarks of thread switching, synchronization, and
+ * user program execution, and prints how long each operation takes. The
+ * benchmarks are run with whatever scheduler, TCB, and processor settings
+ * <tt>nachos.conf</tt> selects, so running this kernel under different
+ * configurations shows what a change to one of them costs.
+ *
+ * <p>
+ * The following keys in <tt>nachos.conf</tt> control the benchmarks:
+ * <ul>
+ * <li><tt>Benchmark.names</tt>: the benchmarks to run, separated by commas
+ * (by default, all of them).
+ * <li><tt>Benchmark.warmups</tt>: the number of unmeasured iterations of each
+ * benchmark (by default, 3).
+ * <li><tt>Benchmark.iterations</tt>: the number of measured iterations of
+ * each benchmark (by default, 10).
+ * <li><tt>Benchmark.operations</tt>: the number of operations per iteration
+ * (by default, a number suited to each benchmark).
+ * <li><tt>Benchmark.threads</tt>: the number of threads contending for the
+ * lock in the <tt>lock</tt> benchmark (by default, 4).
+ * <li><tt>Benchmark.capacity</tt>: the capacity of the communicator in the
+ * <tt>channel</tt> benchmark (by default, 64).
+ * <li><tt>Benchmark.batch</tt>: the number of words spoken and listened for
+ * at a time in the <tt>channel</tt> benchmark (by default, 16).
+ * <li><tt>Benchmark.programs</tt>: the user programs the <tt>mips</tt>
+ * and <tt>faults</tt> benchmarks run, separated by commas (by default,
+ * <tt>matmult.coff</tt>).
+ * </ul>
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel, and the benchmarks to run.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	warmups = Config.getInteger("Benchmark.warmups", 3);
+	iterations = Config.getInteger("Benchmark.iterations", 10);
+	operations = Config.getInteger("Benchmark.operations", 0);
+
+	StringTokenizer names =
+	    new StringTokenizer(Config.getString("Benchmark.names",
+						 defaultNames), ",");
+
+	while (names.hasMoreTokens()) {
+	    String name = names.nextToken();
+
+	    if (name.equals("mips"))
+		addUserProgramBenchmarks(false);
+	    else if (name.equals("faults"))
+		addUserProgramBenchmarks(true);
+	    else
+		benchmarks.add(createBenchmark(name));
+	}
+    }
+
+    private void addUserProgramBenchmarks(boolean demandPaging) {
+	if (Machine.processor() == null) {
+	    System.out.println((demandPaging ? "faults" : "mips")
+			       + ": skipped, no processor");
+	    return;
+	}
+
+	StringTokenizer programs =
+	    new StringTokenizer(Config.getString("Benchmark.programs",
+						 "matmult.coff"), ",");
+
+	while (programs.hasMoreTokens())
+	    benchmarks.add(new UserProgramBenchmark(programs.nextToken(),
+						    demandPaging));
+    }
+
+    private static Benchmark createBenchmark(String name) {
+	if (name.equals("yield"))
+	    return new YieldBenchmark();
+	else if (name.equals("semaphore"))
+	    return new SemaphoreBenchmark();
+	else if (name.equals("lock"))
+	    return new LockBenchmark();
+	else if (name.equals("condition"))
+	    return new ConditionBenchmark();
+	else if (name.equals("communicator"))
+	    return new CommunicatorBenchmark();
+	else if (name.equals("channel"))
+	    return new ChannelBenchmark();
+	else if (name.equals("alarm"))
+	    return new AlarmBenchmark();
+
+	Lib.assertNotReached("unknown benchmark: " + name);
+	return null;
+    }
+
+    /**
+     * The benchmarks replace the self tests, so this does nothing.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run each of the benchmarks in turn.
+     */
+    public void run() {
+	System.out.println("scheduler "
+			   + Config.getString("ThreadedKernel.scheduler"));
+
+	for (Benchmark benchmark : benchmarks)
+	    benchmark.run(warmups, iterations, operations);
+    }
+
+    /**
+     * Fork a thread to run <i>target</i>.
+     *
+     * @param	target	the code the thread should run.
+     * @return	the new thread.
+     */
+    static KThread fork(Runnable target) {
+	KThread thread = new KThread(target);
+	thread.setName("benchmark");
+	thread.fork();
+	return thread;
+    }
+
+    /**
+     * One operation is a round trip of <tt>KThread.yield()</tt> calls
+     * between two threads.
+     */
+    private static class YieldBenchmark extends Benchmark {
+	YieldBenchmark() {
+	    super("yield", 20000);
+	}
+
+	protected void iteration(final int operations) {
+	    KThread other = fork(new Runnable() {
+		    public void run() {
+			for (int i=0; i<operations; i++)
+			    KThread.yield();
+		    }
+		});
+
+	    for (int i=0; i<operations; i++)
+		KThread.yield();
+
+	    other.join();
+	}
+    }
+
+    /**
+     * One operation is a round trip of <tt>V()</tt> and <tt>P()</tt> calls
+     * on two semaphores, between two threads.
+     */
+    private static class SemaphoreBenchmark extends Benchmark {
+	SemaphoreBenchmark() {
+	    super("semaphore", 20000);
+	}
+
+	protected void iteration(final int operations) {
+	    final Semaphore ping = new Semaphore(0);
+	    final Semaphore pong = new Semaphore(0);
+
+	    KThread other = fork(new Runnable() {
+		    public void run() {
+			for (int i=0; i<operations; i++) {
+			    ping.P();
+			    pong.V();
+			}
+		    }
+		});
+
+	    for (int i=0; i<operations; i++) {
+		ping.V();
+		pong.P();
+	    }
+
+	    other.join();
+	}
+    }
+
+    /**
+     * One operation is an <tt>acquire()</tt> and <tt>release()</tt> of a
+     * lock. Each thread yields while holding the lock, so that the other
+     * threads always find it held.
+     */
+    private static class LockBenchmark extends Benchmark {
+	LockBenchmark() {
+	    super("lock", 20000);
+	    numThreads = Config.getInteger("Benchmark.threads", 4);
+	}
+
+	protected void iteration(int operations) {
+	    final Lock lock = new Lock();
+	    final int perThread = operations / numThreads;
+
+	    KThread[] threads = new KThread[numThreads];
+
+	    for (int i=0; i<numThreads; i++) {
+		threads[i] = fork(new Runnable() {
+			public void run() {
+			    for (int j=0; j<perThread; j++) {
+				lock.acquire();
+				KThread.yield();
+				lock.release();
+			    }
+			}
+		    });
+	    }
+
+	    for (int i=0; i<numThreads; i++)
+		threads[i].join();
+	}
+
+	private int numThreads;
+    }
+
+    /**
+     * One operation is a round trip of <tt>wake()</tt> and <tt>sleep()</tt>
+     * calls on a condition variable, between two threads taking turns.
+     */
+    private static class ConditionBenchmark extends Benchmark {
+	ConditionBenchmark() {
+	    super("condition", 20000);
+	}
+
+	protected void iteration(final int operations) {
+	    final Lock lock = new Lock();
+	    final Condition2 condition = new Condition2(lock);
+
+	    KThread other = fork(new Runnable() {
+		    public void run() {
+			takeTurns(lock, condition, 1, operations);
+		    }
+		});
+
+	    takeTurns(lock, condition, 0, operations);
+
+	    other.join();
+	}
+
+	private void takeTurns(Lock lock, Condition2 condition, int me,
+			       int operations) {
+	    lock.acquire();
+
+	    for (int i=0; i<operations; i++) {
+		while (turn != me)
+		    condition.sleep();
+
+		turn = 1 - me;
+		condition.wake();
+	    }
+
+	    lock.release();
+	}
+
+	private int turn = 0;
+    }
+
+    /**
+     * One operation is a word passed from a speaker to a listener through a
+     * communicator.
+     */
+    private static class CommunicatorBenchmark extends Benchmark {
+	CommunicatorBenchmark() {
+	    super("communicator", 10000);
+	}
+
+	protected void iteration(final int operations) {
+	    final Communicator communicator = new Communicator();
+
+	    KThread listener = fork(new Runnable() {
+		    public void run() {
+			for (int i=0; i<operations; i++)
+			    Lib.assertTrue(communicator.listen() == i);
+		    }
+		});
+
+	    for (int i=0; i<operations; i++)
+		communicator.speak(i);
+
+	    listener.join();
+	}
+    }
+
+    /**
+     * One operation is a word passed from a speaker to a listener through a
+     * buffered communicator, in batches.
+     */
+    private static class ChannelBenchmark extends Benchmark {
+	ChannelBenchmark() {
+	    super("channel", 10000);
+	    capacity = Config.getInteger("Benchmark.capacity", 64);
+	    batch = Config.getInteger("Benchmark.batch", 16);
+	}
+
+	protected void iteration(final int operations) {
+	    final Communicator communicator = new Communicator(capacity);
+
+	    KThread listener = fork(new Runnable() {
+		    public void run() {
+			int[] words = new int[batch];
+			int i = 0;
+			while (i < operations) {
+			    int n = communicator.listen(words);
+			    for (int j=0; j<n; j++)
+				Lib.assertTrue(words[j] == i++);
+			}
+		    }
+		});
+
+	    int[] words = new int[batch];
+	    for (int i=0; i<operations; i+=batch) {
+		int n = Math.min(batch, operations-i);
+		for (int j=0; j<n; j++)
+		    words[j] = i+j;
+
+		if (n == batch) {
+		    communicator.speak(words);
+		}
+		else {
+		    for (int j=0; j<n; j++)
+			communicator.speak(words[j]);
+		}
+	    }
+
+	    listener.join();
+	}
+
+	private int capacity, batch;
+    }
+
+    /**
+     * One operation is a call to <tt>Alarm.waitUntil()</tt> with a random
+     * delay. Besides the time per call, this reports how late the alarm woke
+     * the thread up, in simulated ticks.
+     */
+    private static class AlarmBenchmark extends Benchmark {
+	AlarmBenchmark() {
+	    super("alarm", 1000);
+	}
+
+	protected void iteration(int operations) {
+	    for (int i=0; i<operations; i++) {
+		long delay = 1 + Lib.random(maxDelay);
+		long wakeTime = Machine.timer().getTime() + delay;
+
+		ThreadedKernel.alarm.waitUntil(delay);
+
+		long late = Machine.timer().getTime() - wakeTime;
+
+		if (late < 0)
+		    numEarly++;
+
+		totalLate += late;
+		maxLate = Math.max(maxLate, late);
+		numWaits++;
+	    }
+	}
+
+	protected void reset() {
+	    numWaits = numEarly = totalLate = maxLate = 0;
+	}
+
+	protected String details() {
+	    return "woke up " + format((double) totalLate / numWaits)
+		+ " ticks late on average, " + maxLate + " at most, "
+		+ numEarly + " times early";
+	}
+
+	private long numWaits, numEarly, totalLate, maxLate;
+
+	private static final int maxDelay = 5000;
+    }
+
+    private int warmups, iterations, operations;
+    private ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    private static final String defaultNames =
+	"yield,semaphore,lock,condition,communicator,channel,alarm,mips,faults";
+}
@@ -0,0 +1,277 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+
+/**
+ * A benchmark of the MIPS simulation. One operation is a run of a user
+ * program, from its entry point until it calls <tt>exit()</tt> or
+ * <tt>halt()</tt>. Besides the time per run, this reports how many simulated
+ * instructions were executed per second of real time, and how many
+ * exceptions the processor raised per second.
+ *
+ * <p>
+ * With demand paging, only a few pages are valid at a time: a page fault
+ * makes the faulting page valid, and the page made valid longest ago
+ * invalid. The program then faults every few instructions, so the benchmark
+ * measures the cost of raising and handling page faults rather than of
+ * running instructions.
+ *
+ * <p>
+ * The program is loaded into physical memory directly, with a page table
+ * (or TLB entries) mapping each virtual page to the physical page of the
+ * same number, so the benchmark does not depend on <tt>UserProcess</tt>. Its
+ * output is discarded, and every system call other than <tt>exit()</tt>,
+ * <tt>halt()</tt>, and <tt>write()</tt> fails. On a multiprocessor, the
+ * program's thread saves its registers when it stops running, as a
+ * <tt>UThread</tt> does, and can resume on any processor.
+ */
+public class UserProgramBenchmark extends Benchmark {
+    /**
+     * Allocate a new benchmark of a user program.
+     *
+     * @param	fileName	the name of the program's COFF file.
+     */
+    public UserProgramBenchmark(String fileName) {
+	this(fileName, false);
+    }
+
+    /**
+     * Allocate a new benchmark of a user program, optionally with demand
+     * paging.
+     *
+     * @param	fileName	the name of the program's COFF file.
+     * @param	demandPaging	<tt>true</tt> if only
+     *				<tt>residentPages</tt> pages should be
+     *				valid at a time.
+     */
+    public UserProgramBenchmark(String fileName, boolean demandPaging) {
+	super((demandPaging ? "faults " : "mips ") + fileName, 1);
+
+	this.demandPaging = demandPaging;
+
+	Lib.assertTrue(!demandPaging || !Machine.processor().hasTLB(),
+		       "demand paging needs a page table");
+
+	OpenFile executable = ThreadedKernel.fileSystem.open(fileName, false);
+	Lib.assertTrue(executable != null, "cannot open " + fileName);
+
+	try {
+	    coff = new Coff(executable);
+	}
+	catch (EOFException e) {
+	    Lib.assertNotReached("cannot load " + fileName);
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    codePages = Math.max(codePages,
+				 section.getFirstVPN() + section.getLength());
+	}
+	numPages = codePages + stackPages;
+
+	Lib.assertTrue(numPages <= Machine.processor().getNumPhysPages(),
+		       fileName + " does not fit in physical memory");
+    }
+
+    protected void iteration(int operations) {
+	for (int cpu=0; cpu<Machine.numProcessors(); cpu++) {
+	    Machine.processor(cpu).setExceptionHandler(new Runnable() {
+		    public void run() { handleException(); }
+		});
+	}
+
+	for (int i=0; i<operations; i++) {
+	    KThread thread = new ProgramThread();
+	    thread.fork();
+	    thread.join();
+	}
+    }
+
+    protected void reset() {
+	totalInstructions = totalTime = totalExceptions = 0;
+    }
+
+    protected String details() {
+	return format(totalInstructions / (totalTime / 1e9) / 1e6)
+	    + " million simulated instructions per second, "
+	    + format(totalExceptions / (totalTime / 1e9) / 1e3)
+	    + " thousand exceptions per second";
+    }
+
+    private void runProgram() {
+	Processor processor = Machine.processor();
+
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, vpn, !demandPaging,
+						  false, false, false);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN() + i;
+
+		section.loadPage(i, vpn);
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	processor.fillMemory(codePages*Processor.pageSize,
+			     stackPages*Processor.pageSize, (byte) 0);
+
+	loadTranslations(processor);
+
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, 0);
+
+	processor.writeRegister(Processor.regPC, coff.getEntryPoint());
+	processor.writeRegister(Processor.regNextPC, coff.getEntryPoint()+4);
+	processor.writeRegister(Processor.regSP,
+				numPages*Processor.pageSize - 16);
+
+	for (int i=0; i<residentPages; i++)
+	    resident[i] = -1;
+
+	startUserTicks = Machine.stats().userTicks;
+	startTime = System.nanoTime();
+	numExceptions = 0;
+
+	processor.run();
+	Lib.assertNotReached();
+    }
+
+    /**
+     * Give a processor the program's translations: its page table, or an
+     * empty TLB.
+     */
+    private void loadTranslations(Processor processor) {
+	if (processor.hasTLB()) {
+	    for (int i=0; i<processor.getTLBSize(); i++)
+		processor.writeTLBEntry(i, new TranslationEntry());
+	}
+	else {
+	    processor.setPageTable(pageTable);
+	}
+    }
+
+    private void handleException() {
+	Processor processor = Machine.processor();
+	int cause = processor.readRegister(Processor.regCause);
+
+	numExceptions++;
+
+	if (cause == Processor.exceptionPageFault && demandPaging) {
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    int vpn = Processor.pageFromAddress(vaddr);
+
+	    Lib.assertTrue(vpn < numPages, "bad address " + vaddr);
+
+	    if (resident[nextResident] >= 0)
+		pageTable[resident[nextResident]].valid = false;
+
+	    pageTable[vpn].valid = true;
+	    resident[nextResident] = vpn;
+	    nextResident = (nextResident+1) % residentPages;
+	    return;
+	}
+
+	if (cause == Processor.exceptionTLBMiss) {
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    int vpn = Processor.pageFromAddress(vaddr);
+
+	    Lib.assertTrue(vpn < numPages, "bad address " + vaddr);
+
+	    processor.writeTLBEntry(nextTLBEntry, pageTable[vpn]);
+	    nextTLBEntry = (nextTLBEntry+1) % processor.getTLBSize();
+	    return;
+	}
+
+	Lib.assertTrue(cause == Processor.exceptionSyscall,
+		       Processor.exceptionNames[cause] + " exception");
+
+	int result = -1;
+
+	switch (processor.readRegister(Processor.regV0)) {
+	case syscallHalt:
+	case syscallExit:
+	    totalTime += System.nanoTime() - startTime;
+	    totalInstructions +=
+		(Machine.stats().userTicks - startUserTicks) / Stats.UserTick;
+	    totalExceptions += numExceptions;
+	    KThread.finish();
+	    Lib.assertNotReached();
+
+	case syscallWrite:
+	    result = processor.readRegister(Processor.regA2);
+	    break;
+	}
+
+	processor.writeRegister(Processor.regV0, result);
+	processor.advancePC();
+    }
+
+    /**
+     * The thread that runs the program. Like a <tt>UThread</tt>, it keeps
+     * its user registers while it is not running, and when it resumes on
+     * another processor it loads its translations there.
+     */
+    private class ProgramThread extends KThread {
+	ProgramThread() {
+	    setTarget(new Runnable() {
+		    public void run() { runProgram(); }
+		});
+	    setName("benchmark");
+	}
+
+	protected void saveState() {
+	    cpu = Machine.currentProcessor();
+
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		userRegisters[i] = Machine.processor().readRegister(i);
+
+	    super.saveState();
+	}
+
+	protected void restoreState() {
+	    super.restoreState();
+
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		Machine.processor().writeRegister(i, userRegisters[i]);
+
+	    if (cpu != Machine.currentProcessor() && pageTable != null)
+		loadTranslations(Machine.processor());
+	}
+
+	private int[] userRegisters = new int[Processor.numUserRegisters];
+	/** The processor this thread last ran on. */
+	private int cpu = -1;
+    }
+
+    private boolean demandPaging;
+    private int[] resident = new int[residentPages];
+    private int nextResident = 0;
+
+    private Coff coff;
+    private int codePages = 0, numPages;
+    private TranslationEntry[] pageTable;
+    private int nextTLBEntry = 0;
+
+    private long startUserTicks, startTime, numExceptions;
+    private long totalInstructions, totalTime, totalExceptions;
+
+    private static final int stackPages = 8;
+
+    /**
+     * The number of pages that are valid at a time with demand paging.
+     */
+    public static final int residentPages = 4;
+
+    private static final int
+	syscallHalt = 0,
+	syscallExit = 1,
+	syscallWrite = 7;
+}
@@ -0,0 +1,461 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Assembles a minimal JVM class file, for code generated at run time. The
+ * class has a constructor that passes its arguments to the superclass
+ * constructor of the same type, and a single method whose code is emitted
+ * one instruction at a time through this object.
+ *
+ * <p>
+ * To keep stack map frames trivial, the generated method must not declare
+ * any locals beyond its arguments, and the operand stack must be empty at
+ * every label. Only forward branches are supported.
+ */
+class ClassAssembler {
+    /**
+     * Allocate a new class assembler.
+     *
+     * @param	className	the internal name of the class to assemble,
+     *				e.g. <tt>nachos/machine/Example</tt>.
+     * @param	superName	the internal name of its superclass.
+     */
+    ClassAssembler(String className, String superName) {
+	this.superName = superName;
+
+	thisClass = classConstant(className);
+	superClass = classConstant(superName);
+    }
+
+    /**
+     * Emit an instruction with no operands.
+     *
+     * @param	opcode	the opcode.
+     */
+    void emit(int opcode) {
+	code.write(opcode);
+    }
+
+    /**
+     * Push an <tt>int</tt> constant, using the shortest suitable instruction.
+     *
+     * @param	value	the constant to push.
+     */
+    void pushInt(int value) {
+	if (value >= -1 && value <= 5) {
+	    code.write(ICONST_0 + value);
+	}
+	else if (value == (byte) value) {
+	    code.write(BIPUSH);
+	    code.write(value);
+	}
+	else if (value == (short) value) {
+	    code.write(SIPUSH);
+	    writeShort(code, value);
+	}
+	else {
+	    code.write(LDC_W);
+	    writeShort(code, constant("I" + value, CONSTANT_Integer, value));
+	}
+    }
+
+    /**
+     * Push a <tt>long</tt> constant, using the shortest suitable instruction.
+     *
+     * @param	value	the constant to push.
+     */
+    void pushLong(long value) {
+	if (value == 0 || value == 1) {
+	    code.write(LCONST_0 + (int) value);
+	}
+	else {
+	    code.write(LDC2_W);
+	    writeShort(code, longConstant(value));
+	}
+    }
+
+    /**
+     * Emit a method invocation.
+     *
+     * @param	opcode		<tt>INVOKEVIRTUAL</tt>, <tt>INVOKESPECIAL</tt>,
+     *				or <tt>INVOKESTATIC</tt>.
+     * @param	owner		the internal name of the class declaring the
+     *				method.
+     * @param	name		the name of the method.
+     * @param	descriptor	the descriptor of the method.
+     */
+    void invoke(int opcode, String owner, String name, String descriptor) {
+	code.write(opcode);
+	writeShort(code, methodConstant(owner, name, descriptor));
+    }
+
+    /**
+     * Allocate a new label, to be placed later with <tt>mark()</tt>.
+     *
+     * @return	the new label.
+     */
+    int newLabel() {
+	labels.add(-1);
+	return labels.size() - 1;
+    }
+
+    /**
+     * Emit a conditional branch to a label that has not been placed yet.
+     *
+     * @param	opcode	the branch opcode, e.g. <tt>IFNE</tt>.
+     * @param	label	the target of the branch.
+     */
+    void branch(int opcode, int label) {
+	Lib.assertTrue(labels.get(label) == -1);
+
+	fixups.add(new int[] { code.size(), label });
+	code.write(opcode);
+	writeShort(code, 0);
+    }
+
+    /**
+     * Place a label at the next instruction to be emitted. The operand stack
+     * must be empty at this point.
+     *
+     * @param	label	the label to place.
+     */
+    void mark(int label) {
+	Lib.assertTrue(labels.get(label) == -1);
+
+	labels.set(label, code.size());
+    }
+
+    /**
+     * Return the number of bytes of code emitted so far.
+     *
+     * @return	the size of the method's code.
+     */
+    int codeSize() {
+	return code.size();
+    }
+
+    /**
+     * Finish the class and return its class file.
+     *
+     * @param	constructorDescriptor	the descriptor of the constructor,
+     *					which may only take reference
+     *					arguments.
+     * @param	methodName		the name of the generated method.
+     * @param	methodDescriptor	the descriptor of the generated method.
+     * @param	maxStack		the maximum depth of the operand stack
+     *					in the generated method.
+     * @param	maxLocals		the number of local variable slots used
+     *					by the arguments of the generated
+     *					method, including <tt>this</tt>.
+     * @return	the contents of the class file.
+     */
+    byte[] assemble(String constructorDescriptor, String methodName,
+		    String methodDescriptor, int maxStack, int maxLocals) {
+	byte[] methodCode = code.toByteArray();
+
+	for (int[] fixup : fixups) {
+	    int offset = labels.get(fixup[1]) - fixup[0];
+	    Lib.assertTrue(offset > 0 && offset <= Short.MAX_VALUE);
+
+	    methodCode[fixup[0]+1] = (byte) (offset >> 8);
+	    methodCode[fixup[0]+2] = (byte) offset;
+	}
+
+	// the constructor just forwards its arguments to the superclass
+	ByteArrayOutputStream constructorCode = new ByteArrayOutputStream();
+	int numArgs = constructorDescriptor.length()
+	    - constructorDescriptor.replace(";", "").length();
+
+	constructorCode.write(ALOAD_0);
+	for (int i=1; i<=numArgs; i++) {
+	    constructorCode.write(ALOAD);
+	    constructorCode.write(i);
+	}
+	constructorCode.write(INVOKESPECIAL);
+	writeShort(constructorCode,
+		   methodConstant(superName, "<init>", constructorDescriptor));
+	constructorCode.write(RETURN);
+
+	// every label gets a frame identical to the method's initial frame
+	ByteArrayOutputStream frames = new ByteArrayOutputStream();
+	int numFrames = 0;
+	int lastOffset = -1;
+
+	for (int offset : sortedLabels()) {
+	    int delta = offset - lastOffset - 1;
+
+	    if (delta < 64) {
+		frames.write(delta);
+	    }
+	    else {
+		frames.write(SAME_FRAME_EXTENDED);
+		writeShort(frames, delta);
+	    }
+
+	    numFrames++;
+	    lastOffset = offset;
+	}
+
+	int codeName = utf8Constant("Code");
+	int stackMapName = utf8Constant("StackMapTable");
+	int constructorName = utf8Constant("<init>");
+	int constructorType = utf8Constant(constructorDescriptor);
+	int methodNameIndex = utf8Constant(methodName);
+	int methodType = utf8Constant(methodDescriptor);
+
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(classFileVersion);
+
+	    out.writeShort(numConstants);
+	    out.write(constants.toByteArray());
+
+	    out.writeShort(ACC_FINAL | ACC_SUPER);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0);		// interfaces
+	    out.writeShort(0);		// fields
+	    out.writeShort(2);		// methods
+
+	    out.writeShort(0);
+	    out.writeShort(constructorName);
+	    out.writeShort(constructorType);
+	    out.writeShort(1);
+	    writeCode(out, codeName, 1+numArgs, 1+numArgs,
+		      constructorCode.toByteArray(), null, 0, 0);
+
+	    out.writeShort(ACC_FINAL);
+	    out.writeShort(methodNameIndex);
+	    out.writeShort(methodType);
+	    out.writeShort(1);
+	    writeCode(out, codeName, maxStack, maxLocals, methodCode,
+		      frames.toByteArray(), numFrames, stackMapName);
+
+	    out.writeShort(0);		// class attributes
+
+	    out.flush();
+	    return bytes.toByteArray();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    private void writeCode(DataOutputStream out, int codeName, int maxStack,
+			   int maxLocals, byte[] code, byte[] frames,
+			   int numFrames, int stackMapName)
+	throws IOException {
+	int framesLength = (numFrames == 0) ? 0 : 2 + 4 + 2 + frames.length;
+
+	out.writeShort(codeName);
+	out.writeInt(2 + 2 + 4 + code.length + 2 + 2 + framesLength);
+	out.writeShort(maxStack);
+	out.writeShort(maxLocals);
+	out.writeInt(code.length);
+	out.write(code);
+	out.writeShort(0);		// exception table
+
+	if (numFrames == 0) {
+	    out.writeShort(0);
+	}
+	else {
+	    out.writeShort(1);
+	    out.writeShort(stackMapName);
+	    out.writeInt(2 + frames.length);
+	    out.writeShort(numFrames);
+	    out.write(frames);
+	}
+    }
+
+    private int[] sortedLabels() {
+	int[] offsets = new int[labels.size()];
+	for (int i=0; i<offsets.length; i++) {
+	    offsets[i] = labels.get(i);
+	    Lib.assertTrue(offsets[i] != -1);
+	}
+
+	Arrays.sort(offsets);
+
+	// several labels may share an offset, but need only one frame
+	int numOffsets = 0;
+	for (int i=0; i<offsets.length; i++) {
+	    if (numOffsets == 0 || offsets[numOffsets-1] != offsets[i])
+		offsets[numOffsets++] = offsets[i];
+	}
+
+	return Arrays.copyOf(offsets, numOffsets);
+    }
+
+    private int utf8Constant(String value) {
+	Integer index = constantIndices.get("U" + value);
+	if (index != null)
+	    return index;
+
+	constants.write(CONSTANT_Utf8);
+	try {
+	    new DataOutputStream(constants).writeUTF(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	return addConstant("U" + value, 1);
+    }
+
+    private int classConstant(String name) {
+	return constant("C" + name, CONSTANT_Class, utf8Constant(name), -1);
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) {
+	int nameAndType = constant("N" + name + " " + descriptor,
+				   CONSTANT_NameAndType,
+				   utf8Constant(name), utf8Constant(descriptor));
+
+	return constant("M" + owner + "." + name + descriptor,
+			CONSTANT_Methodref, classConstant(owner), nameAndType);
+    }
+
+    private int longConstant(long value) {
+	Integer index = constantIndices.get("J" + value);
+	if (index != null)
+	    return index;
+
+	constants.write(CONSTANT_Long);
+	writeInt(constants, (int) (value >>> 32));
+	writeInt(constants, (int) value);
+
+	// longs take up two slots in the constant pool
+	return addConstant("J" + value, 2);
+    }
+
+    private int constant(String key, int tag, int value) {
+	Integer index = constantIndices.get(key);
+	if (index != null)
+	    return index;
+
+	constants.write(tag);
+	writeInt(constants, value);
+
+	return addConstant(key, 1);
+    }
+
+    private int constant(String key, int tag, int first, int second) {
+	Integer index = constantIndices.get(key);
+	if (index != null)
+	    return index;
+
+	constants.write(tag);
+	writeShort(constants, first);
+	if (second != -1)
+	    writeShort(constants, second);
+
+	return addConstant(key, 1);
+    }
+
+    private int addConstant(String key, int slots) {
+	int index = numConstants;
+
+	constantIndices.put(key, index);
+	numConstants += slots;
+
+	return index;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+	out.write(value >> 8);
+	out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+	writeShort(out, value >> 16);
+	writeShort(out, value);
+    }
+
+    private String superName;
+    private int thisClass, superClass;
+
+    private ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private HashMap<String, Integer> constantIndices =
+	new HashMap<String, Integer>();
+    private int numConstants = 1;
+
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+    /** Label offsets in the code, or -1 for labels not yet placed. */
+    private ArrayList<Integer> labels = new ArrayList<Integer>();
+    /** The offset of each branch instruction, and the label it targets. */
+    private ArrayList<int[]> fixups = new ArrayList<int[]>();
+
+    /** Java 8 class files, the first to require stack map frames. */
+    private static final int classFileVersion = 52;
+
+    private static final int
+	ACC_FINAL		= 0x0010,
+	ACC_SUPER		= 0x0020;
+
+    private static final int
+	CONSTANT_Utf8		= 1,
+	CONSTANT_Integer	= 3,
+	CONSTANT_Long		= 5,
+	CONSTANT_Class		= 7,
+	CONSTANT_Methodref	= 10,
+	CONSTANT_NameAndType	= 12;
+
+    private static final int SAME_FRAME_EXTENDED = 251;
+
+    static final int
+	ICONST_M1	= 0x02,
+	ICONST_0	= 0x03,
+	LCONST_0	= 0x09,
+	BIPUSH		= 0x10,
+	SIPUSH		= 0x11,
+	LDC_W		= 0x13,
+	LDC2_W		= 0x14,
+	ALOAD		= 0x19,
+	ILOAD_2		= 0x1C,
+	ILOAD_3		= 0x1D,
+	ALOAD_0		= 0x2A,
+	ALOAD_1		= 0x2B,
+	IALOAD		= 0x2E,
+	ISTORE_3	= 0x3E,
+	IASTORE		= 0x4F,
+	POP		= 0x57,
+	IADD		= 0x60,
+	LADD		= 0x61,
+	ISUB		= 0x64,
+	LSUB		= 0x65,
+	ISHL		= 0x78,
+	ISHR		= 0x7A,
+	LUSHR		= 0x7D,
+	IAND		= 0x7E,
+	LAND		= 0x7F,
+	IOR		= 0x80,
+	IXOR		= 0x82,
+	I2L		= 0x85,
+	L2I		= 0x88,
+	IFEQ		= 0x99,
+	IFNE		= 0x9A,
+	IFLT		= 0x9B,
+	IFGE		= 0x9C,
+	IFGT		= 0x9D,
+	IFLE		= 0x9E,
+	IF_ICMPEQ	= 0x9F,
+	IF_ICMPNE	= 0xA0,
+	IRETURN		= 0xAC,
+	RETURN		= 0xB1,
+	INVOKEVIRTUAL	= 0xB6,
+	INVOKESPECIAL	= 0xB7,
+	INVOKESTATIC	= 0xB8;
+}
@@ -4,9 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +41,23 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * On a multiprocessor each processor has its own interrupt controller, with
+ * its own pending interrupts and its own clock, and runs on its own host
+ * thread. Disabling interrupts only affects the current processor. Only one
+ * processor at a time runs kernel code, the one holding the kernel lock; the
+ * others run user instructions, wait for the lock, or are idle. The holder
+ * lets any processor waiting for the lock go first whenever simulated time
+ * advances in the kernel, which, like an interrupt, can only happen where
+ * interrupts are enabled. The time in <tt>Stats.totalTicks</tt> is the clock
+ * of the processor holding the lock; a processor whose clock is behind it
+ * when it takes the lock waits until then, and the ticks are counted in
+ * <tt>Stats.lockTicks</tt>. So kernel code never sees time go back, even on
+ * another processor. The processors' clocks are kept within
+ * <tt>maxSkew</tt> ticks of each other, and an idle processor does not skip
+ * ahead of the clock of any other, so that interrupts still happen in order.
+ * Processors interrupt each other with <tt>sendIPI()</tt>.
  */
 public final class Interrupt {
     /**
@@ -51,9 +71,25 @@ public final class Interrupt {
 	
 	this.privilege = privilege;
 	privilege.interrupt = new InterruptPrivilege();
+
+	cpu = 0;
+	state = stateKernel;
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+    }
+
+    /**
+     * Allocate the interrupt controller of another processor of a
+     * multiprocessor. The processor is offline until it is started with
+     * <tt>TCB.start(Runnable, int)</tt>.
+     */
+    Interrupt(Privilege privilege, int cpu) {
+	this.privilege = privilege;
+	this.cpu = cpu;
+	state = stateOffline;
+	multiprocessor = true;
+
+	enabled = false;
     }
 
     /**
@@ -120,70 +156,556 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Skip simulated time forward to the next pending interrupt, and invoke
+     * the handlers of any interrupts that are then due. The time skipped is
+     * counted as idle time, not kernel time. Interrupts must be disabled.
+     *
+     * <p>
+     * This is meant for the idle thread, when no other thread is ready to
+     * run: nothing can happen until the next interrupt, so yielding once per
+     * tick until then would only waste real time. If no interrupt is pending,
+     * this does nothing.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (multiprocessor) {
+	    waitIdle();
+	    checkIfDue();
+	    return;
+	}
+
+	if (numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+	long ticks = nextTime() - stats.totalTicks;
+
+	if (ticks > 0) {
+	    stats.idleTicks += ticks;
+	    stats.totalTicks += ticks;
+
+	    Lib.debug(dbgInt, "Idling until time = " + stats.totalTicks);
+	}
+
+	checkIfDue();
+    }
+
+    /**
+     * Send an inter-processor interrupt to another processor of a
+     * multiprocessor. The processor calls <i>handler</i> the next time it
+     * takes interrupts, waking up first if it is idle. The handler is called
+     * with interrupts disabled, like that of any other interrupt.
+     *
+     * @param	cpu	the number of the processor to interrupt.
+     * @param	handler	the interrupt handler to call.
+     */
+    public void sendIPI(int cpu, Runnable handler) {
+	Lib.assertTrue(cpu != this.cpu);
+
+	Interrupt target = Machine.interrupt(cpu);
+	privilege.stats.numIPIs++;
+
+	target.ipis.add(handler);
+	Thread waiter = target.waiter;
+	if (waiter != null)
+	    LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Have this processor call <i>flush</i> to invalidate some of its TLB
+     * entries, and return once it has. A processor that is running user
+     * instructions takes the request as an interrupt at the end of its
+     * current batch, while this waits; any other processor cannot be using
+     * its TLB, and <i>flush</i> is called right away. Must be called by the
+     * processor holding the kernel lock.
+     *
+     * @param	flush	invalidates this processor's TLB entries.
+     * @return	<tt>true</tt> if the processor had to be interrupted.
+     */
+    boolean shootdown(Runnable flush) {
+	// a processor can only start running user instructions with the lock
+	if (state != stateUser) {
+	    flush.run();
+	    return false;
+	}
+
+	shootdownRequest.set(flush);
+	for (int spins=0;
+	     state == stateUser && shootdownRequest.get() != null; spins++)
+	    pause(spins);
+
+	// it may have stopped before it saw the request
+	Runnable request = shootdownRequest.getAndSet(null);
+	if (request != null)
+	    request.run();
+
+	return true;
+    }
+
+    /**
+     * Let go of the kernel lock to run user instructions. Does nothing
+     * without a multiprocessor. So that the clocks stay close together, a
+     * processor more than <tt>maxSkew</tt> ticks ahead of another first waits
+     * for it to catch up.
+     */
+    void leaveKernel() {
+	if (!multiprocessor)
+	    return;
+
+	unlock(stateUser);
+
+	for (int spins=0; clock - otherProcessorsTime() > maxSkew; spins++) {
+	    Runnable request = shootdownRequest.getAndSet(null);
+	    if (request != null)
+		request.run();
+
+	    pause(spins);
+	}
+    }
+
+    /**
+     * Count the user instructions just executed on this processor, and take
+     * the kernel lock back on a multiprocessor. Does not take interrupts.
+     *
+     * @param	executed	the number of instructions executed.
+     */
+    void enterKernel(int executed) {
+	long ticks = (long) Stats.UserTick * executed;
+
+	if (!multiprocessor) {
+	    privilege.stats.userTicks += ticks;
+	    privilege.stats.totalTicks += ticks;
+	    return;
+	}
+
+	clock += ticks;
+	pendingUserTicks += ticks;
+	lock(false);
+    }
+
+    /**
+     * Take any interrupts that are due, as at the end of a tick.
+     */
+    void takeInterrupts() {
+	if (Lib.test(dbgInt))
+	    System.out.println("== Tick " + privilege.stats.totalTicks + " ==");
+
+	enabled = false;
+	checkIfDue();
+	// a handler may have switched to a thread running on another processor
+	Machine.interrupt().enabled = true;
+    }
+
+    /**
+     * Bring this processor of a multiprocessor online, running <i>tcb</i>,
+     * when it first gets the kernel lock. Called by the TCB, on its own host
+     * thread.
+     */
+    void startProcessor(TCB tcb) {
+	Lib.assertTrue(state == stateWaiting);
+
+	this.tcb = tcb;
+	lock(false);
+    }
+
+    /**
+     * Prepare to start this processor of a multiprocessor, from the processor
+     * holding the kernel lock. From now on the others take this processor's
+     * clock into account.
+     */
+    void prepareProcessor() {
+	Lib.assertTrue(multiprocessor && state == stateOffline);
+
+	clock = privilege.stats.totalTicks;
+	state = stateWaiting;
+    }
+
+    /**
+     * Wait, without the kernel lock, until this processor has an interrupt
+     * to take, and take the lock back. An interrupt from another processor
+     * is taken at once. This processor's next pending interrupt is taken
+     * when every other processor's clock has reached its time, or, for an
+     * idle processor, when its own next interrupt is no earlier; so this
+     * processor's clock skips ahead as far as it can without passing
+     * another's. The time skipped is counted as idle time.
+     */
+    private void waitIdle() {
+	long next = (numPending > 0) ? nextTime() : Long.MAX_VALUE;
+
+	idleUntil = next;
+	waiter = Thread.currentThread();
+	unlock(stateIdle);
+
+	for (int spins=0; ipis.isEmpty(); spins++) {
+	    if (next != Long.MAX_VALUE && next <= otherProcessorsTime()) {
+		if (next > clock) {
+		    pendingIdleTicks += next - clock;
+		    clock = next;
+		}
+		break;
+	    }
+
+	    pause(spins);
+	}
+
+	waiter = null;
+	lock(true);
+
+	Lib.debug(dbgInt, "Idling until time = " + privilege.stats.totalTicks);
+    }
+
+    /**
+     * Return the earliest time at which another processor of a
+     * multiprocessor may yet take an interrupt.
+     */
+    private long otherProcessorsTime() {
+	long earliest = Long.MAX_VALUE;
+
+	for (int i=0; i<Machine.numProcessors(); i++) {
+	    Interrupt other = Machine.interrupt(i);
+	    if (other == this)
+		continue;
+
+	    int otherState = other.state;
+	    if (otherState == stateOffline)
+		continue;
+
+	    long otherTime;
+	    if (otherState == stateIdle && other.ipis.isEmpty())
+		otherTime = other.idleUntil;
+	    else
+		otherTime = other.clock;
+
+	    earliest = Math.min(earliest, otherTime);
+	}
+
+	return earliest;
+    }
+
+    /**
+     * Wait a little while for another processor, before checking on it
+     * again: spin at first, and then give up the host CPU, which the other
+     * processor may need.
+     *
+     * @param	spins	the number of times the processor was checked so far.
+     */
+    private static void pause(int spins) {
+	if (spins < maxSpins)
+	    Thread.onSpinWait();
+	else if (spins < maxSpins*2)
+	    Thread.yield();
+	else
+	    LockSupport.parkNanos(pollNanos);
+    }
+
+    /**
+     * Take the kernel lock, and make this the current processor. Its clock
+     * catches up with the time in <tt>Stats.totalTicks</tt>, when the last
+     * processor to hold the lock let it go, counting the ticks as waiting for
+     * the lock, or as idle if it was idle. If its clock is ahead instead, the
+     * time in <tt>Stats.totalTicks</tt> moves forward to it.
+     */
+    private void lock(boolean idle) {
+	state = stateWaiting;
+
+	// a TLB shootdown sent while this processor was running user code
+	Runnable request = shootdownRequest.getAndSet(null);
+	if (request != null)
+	    request.run();
+
+	kernelLock.acquireUninterruptibly();
+
+	Machine.setCurrentProcessor(cpu);
+	TCB.setCurrentTCB(tcb);
+
+	Stats stats = privilege.stats;
+	stats.userTicks += pendingUserTicks;
+	stats.idleTicks += pendingIdleTicks;
+	pendingUserTicks = pendingIdleTicks = 0;
+
+	long lag = stats.totalTicks - clock;
+	if (lag > 0) {
+	    if (idle)
+		stats.idleTicks += lag;
+	    else
+		stats.lockTicks += lag;
+	    clock = stats.totalTicks;
+	}
+	else {
+	    stats.totalTicks = clock;
+	}
+
+	state = stateKernel;
+    }
+
+    /**
+     * Let go of the kernel lock, leaving this processor in <i>newState</i>.
+     */
+    private void unlock(int newState) {
+	clock = privilege.stats.totalTicks;
+	tcb = TCB.currentTCB();
+	state = newState;
+
+	kernelLock.release();
+    }
+
+    void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+
+	// reuse a pending interrupt that has already been handled, if any
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.next;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	insert(toOccur);
+    }
+
+    /**
+     * Add a pending interrupt to the timing wheel. The wheel has
+     * <tt>numLevels</tt> levels of <tt>numSlots</tt> slots each; a slot on
+     * level <i>n</i> covers <tt>numSlots<sup>n</sup></tt> ticks. An interrupt
+     * goes on the lowest level whose slots are wide enough to cover both it
+     * and <tt>wheelTime</tt> from a single revolution of the level above, or
+     * in the overflow list if it is too far away for any level.
+     *
+     * <p>
+     * Slots on level 0 each cover exactly one tick, and are kept sorted by
+     * creation order, so interrupts due at the same time occur in the order
+     * in which they were scheduled.
+     */
+    private void insert(PendingInterrupt toOccur) {
+	long time = toOccur.time;
+
+	Lib.assertTrue(time >= wheelTime);
+	numPending++;
+
+	for (int level=0; level<numLevels; level++) {
+	    int shift = slotBits*(level+1);
+	    if ((time >> shift) != (wheelTime >> shift))
+		continue;
+
+	    int slot = (int) (time >> (slotBits*level)) & slotMask;
+	    PendingInterrupt[] row = slots[level];
+
+	    if (level > 0 || row[slot] == null ||
+		toOccur.id < row[slot].id) {
+		toOccur.next = row[slot];
+		row[slot] = toOccur;
+	    }
+	    else {
+		PendingInterrupt prev = row[slot];
+		while (prev.next != null && prev.next.id < toOccur.id)
+		    prev = prev.next;
+
+		toOccur.next = prev.next;
+		prev.next = toOccur;
+	    }
+
+	    occupied[level] |= 1L << slot;
+	    return;
+	}
+
+	toOccur.next = overflow;
+	overflow = toOccur;
+    }
+
+    /**
+     * Re-insert every pending interrupt in a list, after the wheel has
+     * turned.
+     */
+    private void reinsert(PendingInterrupt list) {
+	while (list != null) {
+	    PendingInterrupt next = list.next;
+	    numPending--;
+	    insert(list);
+	    list = next;
+	}
+    }
+
+    /**
+     * Turn the wheel forward to <i>time</i>. No pending interrupt may be due
+     * before then. Interrupts in the slots that now cover <i>time</i> are
+     * moved down to the lower levels.
+     */
+    private void turnWheel(long time) {
+	Lib.assertTrue(time >= wheelTime);
+
+	long oldTime = wheelTime;
+	wheelTime = time;
+
+	if ((time >> wheelBits) != (oldTime >> wheelBits)) {
+	    PendingInterrupt list = overflow;
+	    overflow = null;
+	    reinsert(list);
+	}
+
+	for (int level=numLevels-1; level>0; level--) {
+	    int slot = (int) (time >> (slotBits*level)) & slotMask;
+
+	    if ((occupied[level] & (1L << slot)) != 0) {
+		PendingInterrupt list = slots[level][slot];
+		slots[level][slot] = null;
+		occupied[level] &= ~(1L << slot);
+		reinsert(list);
+	    }
+	}
+    }
+
+    /**
+     * Return the time of the earliest pending interrupt, or
+     * <tt>Long.MAX_VALUE</tt> if there are none.
+     */
+    private long nextTime() {
+	// every interrupt on a level is due before those on the levels above
+	if (occupied[0] != 0) {
+	    return (wheelTime & ~(long) slotMask)
+		| Long.numberOfTrailingZeros(occupied[0]);
+	}
+
+	for (int level=1; level<numLevels; level++) {
+	    if (occupied[level] != 0) {
+		int slot = Long.numberOfTrailingZeros(occupied[level]);
+		return earliest(slots[level][slot]);
+	    }
+	}
+
+	return earliest(overflow);
+    }
+
+    private static long earliest(PendingInterrupt list) {
+	long time = Long.MAX_VALUE;
+
+	for (; list != null; list = list.next)
+	    time = Math.min(time, list.time);
+
+	return time;
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int count) {
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += (long) Stats.KernelTick * count;
+	    stats.totalTicks += (long) Stats.KernelTick * count;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += (long) Stats.UserTick * count;
+	    stats.totalTicks += (long) Stats.UserTick * count;
 	}
 
+	if (multiprocessor) {
+	    clock = stats.totalTicks;
+
+	    // let any processor waiting for the kernel lock have it first
+	    if (kernelLock.hasQueuedThreads()) {
+		unlock(stateWaiting);
+		lock(false);
+	    }
+	}
+
+	takeInterrupts();
+    }
+
+    private int userTicksUntilDue() {
+	// the debugging output for every tick must still be printed
 	if (Lib.test(dbgInt))
-	    System.out.println("== Tick " + stats.totalTicks + " ==");
+	    return 1;
 
-	enabled = false;
-	checkIfDue();
-	enabled = true;
+	if (numPending == 0)
+	    return Integer.MAX_VALUE;
+
+	long delay = nextTime() - privilege.stats.totalTicks;
+	long ticks = (delay + Stats.UserTick - 1) / Stats.UserTick;
+
+	return (int) Math.max(1, Math.min(ticks, Integer.MAX_VALUE));
     }
 
     private void checkIfDue() {
-	long time = privilege.stats.totalTicks;
-
 	Lib.assertTrue(disabled());
 
+	// interrupts from other processors are due at once
+	Runnable ipi;
+	while ((ipi = ipis.poll()) != null) {
+	    if (privilege.processor != null)
+		privilege.processor.flushPipe();
+
+	    Lib.debug(dbgInt, "  IPI");
+
+	    ipi.run();
+
+	    // the handler switched to a thread now running elsewhere
+	    if (Machine.interrupt() != this)
+		return;
+	}
+
+	long time = privilege.stats.totalTicks;
+
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextTime() > time) {
+	    // keep the wheel close to the current time
+	    if (time > wheelTime)
+		turnWheel(time);
 	    return;
+	}
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	long nextTime;
+	while ((nextTime = nextTime()) <= time) {
+	    turnWheel(nextTime);
 
-	    Lib.assertTrue(next.time <= time);
+	    int slot = (int) nextTime & slotMask;
+	    PendingInterrupt next = slots[0][slot];
+	    slots[0][slot] = next.next;
+	    if (next.next == null)
+		occupied[0] &= ~(1L << slot);
+	    numPending--;
+
+	    Lib.assertTrue(next.time == nextTime);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
 	    Lib.debug(dbgInt, "  " + next.type);
 			
-	    next.handler.run();
+	    Runnable handler = next.handler;
+
+	    next.type = null;
+	    next.handler = null;
+	    next.next = freeList;
+	    freeList = next;
+
+	    handler.run();
+
+	    if (Machine.interrupt() != this)
+		return;
 	}
 
+	// a handler may have switched threads, letting time move on
+	if (time > wheelTime)
+	    turnWheel(time);
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
@@ -192,8 +714,17 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	ArrayList<PendingInterrupt> sorted = new ArrayList<PendingInterrupt>();
+
+	for (int level=0; level<numLevels; level++) {
+	    for (int slot=0; slot<numSlots; slot++)
+		addAll(sorted, slots[level][slot]);
+	}
+	addAll(sorted, overflow);
+
+	Collections.sort(sorted);
+
+	for (PendingInterrupt toOccur : sorted) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,16 +732,15 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
+    private static void addAll(ArrayList<PendingInterrupt> sorted,
+			       PendingInterrupt list) {
+	for (; list != null; list = list.next)
+	    sorted.add(list);
+    }
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+    private static class PendingInterrupt
+	implements Comparable<PendingInterrupt> {
+	public int compareTo(PendingInterrupt toOccur) {
 
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
@@ -228,6 +758,8 @@ public final class Interrupt {
 	long time;
 	String type;
 	Runnable handler;
+	/** The next interrupt in the same slot, or in the free list. */
+	PendingInterrupt next;
 
 	private long id;
     }
@@ -237,17 +769,101 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /** The number of this controller's processor. */
+    private final int cpu;
+
+    /**
+     * The time on this processor's clock, on a multiprocessor. It is the
+     * time in <tt>Stats.totalTicks</tt> while the processor holds the kernel
+     * lock, and runs ahead of it while the processor runs user instructions.
+     */
+    private volatile long clock = 0;
+    /** What this processor is doing, on a multiprocessor. */
+    private volatile int state;
+    /** When an idle processor will next take an interrupt. */
+    private volatile long idleUntil;
+    /** The host thread of this processor while it is idle. */
+    private volatile Thread waiter = null;
+    /** The TCB that was running on this processor when it left the kernel. */
+    private TCB tcb = null;
+    /** Ticks to add to the statistics when the kernel lock is taken. */
+    private long pendingUserTicks = 0, pendingIdleTicks = 0;
+
+    /** Interrupts sent by other processors, not yet taken. */
+    private final ConcurrentLinkedQueue<Runnable> ipis =
+	new ConcurrentLinkedQueue<Runnable>();
+    /** A TLB shootdown sent while this processor runs user instructions. */
+    private final AtomicReference<Runnable> shootdownRequest =
+	new AtomicReference<Runnable>();
+
+    private static final int stateOffline = 0;
+    private static final int stateKernel = 1;
+    private static final int stateUser = 2;
+    private static final int stateWaiting = 3;
+    private static final int stateIdle = 4;
+
+    /** <tt>true</tt> if there is more than one processor. */
+    private static boolean multiprocessor = false;
+
+    /**
+     * The kernel lock, held by the processor that is running kernel code. It
+     * starts out held by the first processor, and is fair, so a processor
+     * that lets it go to another is next in line for it.
+     */
+    private static final Semaphore kernelLock = new Semaphore(0, true);
+
+    /** How far a processor's clock may run ahead of the others. */
+    private static final long maxSkew = 50;
+    /** How many times a processor waiting for another spins. */
+    private static final int maxSpins = 50;
+    /** How long a processor waiting for another sleeps after spinning. */
+    private static final long pollNanos = 20000;
+
+    /** The number of bits of the time used to pick a slot on each level. */
+    private static final int slotBits = 6;
+    private static final int numSlots = 1 << slotBits;
+    private static final int slotMask = numSlots - 1;
+    private static final int numLevels = 4;
+    /** The number of bits of the time covered by one turn of the wheel. */
+    private static final int wheelBits = slotBits*numLevels;
+
+    /** The time the wheel has turned to; no interrupt is due before it. */
+    private long wheelTime = 0;
+    /** The pending interrupts on each level of the wheel, by slot. */
+    private PendingInterrupt[][] slots =
+	new PendingInterrupt[numLevels][numSlots];
+    /** A bit mask of the non-empty slots on each level. */
+    private long[] occupied = new long[numLevels];
+    /** Pending interrupts too far in the future for the wheel. */
+    private PendingInterrupt overflow = null;
+    private int numPending = 0;
+
+    /** Interrupts that have been handled, ready to be scheduled again. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
-    private class InterruptPrivilege implements Privilege.InterruptPrivilege {
+    /**
+     * Privileged access to the interrupt controller of the processor that is
+     * currently running.
+     */
+    private static class InterruptPrivilege
+	implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	    Machine.interrupt().schedule(when, type, handler);
 	}
 
 	public void tick(boolean inKernelMode) {
-	    Interrupt.this.tick(inKernelMode);
+	    Machine.interrupt().tick(inKernelMode);
+	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Machine.interrupt().tick(inKernelMode, count);
+	}
+
+	public int userTicksUntilDue() {
+	    return Machine.interrupt().userTicksUntilDue();
 	}
     }
 }
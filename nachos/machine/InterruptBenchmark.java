@@ -0,0 +1,174 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Measures the cost of scheduling and delivering interrupts with many
+ * interrupts outstanding, comparing <tt>Interrupt</tt> with a queue kept in a
+ * <tt>TreeSet</tt>, as <tt>Interrupt</tt> used to do. Each outstanding
+ * interrupt reschedules itself at a random delay when it occurs, the way
+ * devices do.
+ *
+ * <p>
+ * This runs outside of Nachos, with
+ * <tt>java nachos.machine.InterruptBenchmark [outstanding...]</tt>.
+ */
+public final class InterruptBenchmark {
+    /**
+     * Allocate a new <tt>InterruptBenchmark</tt> object.
+     *
+     * @param	numOutstanding	the number of interrupts to keep pending.
+     */
+    public InterruptBenchmark(int numOutstanding) {
+	this.numOutstanding = numOutstanding;
+    }
+
+    /**
+     * Run the benchmark for each number of outstanding interrupts given on
+     * the command line, or for a default set of sizes.
+     *
+     * @param	args	the numbers of outstanding interrupts to try.
+     */
+    public static void main(String[] args) {
+	int[] sizes = { 100, 10000, 50000 };
+
+	if (args.length > 0) {
+	    sizes = new int[args.length];
+	    for (int i=0; i<args.length; i++)
+		sizes[i] = Integer.parseInt(args[i]);
+	}
+
+	for (int i=0; i<sizes.length; i++)
+	    new InterruptBenchmark(sizes[i]).run();
+    }
+
+    /**
+     * Run the benchmark, printing the average time per interrupt for each
+     * queue. Each queue is run twice, and only the second run is reported,
+     * to leave out the time taken by the JIT compiler.
+     */
+    public void run() {
+	runTimingWheel();
+	long wheel = runTimingWheel();
+	runTreeSet();
+	long treeSet = runTreeSet();
+
+	System.out.println("\n" + numOutstanding + " outstanding: "
+			   + "timing wheel " + wheel / numEvents + " ns, "
+			   + "TreeSet " + treeSet / numEvents
+			   + " ns per interrupt");
+    }
+
+    private long runTimingWheel() {
+	final BenchmarkPrivilege privilege = new BenchmarkPrivilege();
+	new Interrupt(privilege);
+
+	final Random random = new Random(seed);
+
+	Runnable handler = new Runnable() {
+		public void run() {
+		    eventsDone++;
+		    privilege.interrupt.schedule(delay(random), "device", this);
+		}
+	    };
+
+	for (int i=0; i<numOutstanding; i++)
+	    privilege.interrupt.schedule(delay(random), "device", handler);
+
+	eventsDone = 0;
+	long startTime = System.nanoTime();
+
+	while (eventsDone < numEvents)
+	    privilege.interrupt.tick(false);
+
+	return System.nanoTime() - startTime;
+    }
+
+    private long runTreeSet() {
+	TreeSet<Event> pending = new TreeSet<Event>();
+	Random random = new Random(seed);
+	long time = 0, numCreated = 0;
+
+	for (int i=0; i<numOutstanding; i++)
+	    pending.add(new Event(time + delay(random), numCreated++));
+
+	eventsDone = 0;
+	long startTime = System.nanoTime();
+
+	while (eventsDone < numEvents) {
+	    time++;
+
+	    while (!pending.isEmpty() && pending.first().time <= time) {
+		pending.remove(pending.first());
+
+		eventsDone++;
+		pending.add(new Event(time + delay(random), numCreated++));
+	    }
+	}
+
+	return System.nanoTime() - startTime;
+    }
+
+    private long delay(Random random) {
+	// on average, one interrupt occurs per tick
+	return 1 + random.nextInt(2*numOutstanding);
+    }
+
+    private static class Event implements Comparable<Event> {
+	Event(long time, long id) {
+	    this.time = time;
+	    this.id = id;
+	}
+
+	public int compareTo(Event e) {
+	    if (time != e.time)
+		return (time < e.time) ? -1 : 1;
+	    else
+		return Long.compare(id, e.id);
+	}
+
+	long time, id;
+    }
+
+    private static class BenchmarkPrivilege extends Privilege {
+	BenchmarkPrivilege() {
+	    stats = new Stats();
+	}
+
+	public void doPrivileged(Runnable action) {
+	    action.run();
+	}
+
+	public Object doPrivileged(PrivilegedAction action) {
+	    return action.run();
+	}
+
+	public Object doPrivileged(PrivilegedExceptionAction action)
+	    throws PrivilegedActionException {
+	    try {
+		return action.run();
+	    }
+	    catch (Exception e) {
+		throw new PrivilegedActionException(e);
+	    }
+	}
+
+	public void exit(int exitStatus) {
+	    System.exit(exitStatus);
+	}
+    }
+
+    private int numOutstanding;
+    private long eventsDone;
+
+    private static final long numEvents = 2000000;
+    private static final long seed = 1;
+}
@@ -97,6 +97,11 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	// the processors share physical memory
+	if (processors != null)
+	    processors[0].syncMemory();
+
 	terminate();
     }
 
@@ -167,8 +172,21 @@ public final class Machine {
     }
 
     private static void createDevices() {
-	interrupt = new Interrupt(privilege);
-	timer = new Timer(privilege);
+	int numCPUs = 1;
+	if (Config.getBoolean("Machine.processor"))
+	    numCPUs = Config.getInteger("Processor.numCPUs", 1);
+	Lib.assertTrue(numCPUs > 0);
+
+	// each processor has its own interrupt controller and timer
+	interrupts = new Interrupt[numCPUs];
+	timers = new Timer[numCPUs];
+
+	interrupt = interrupts[0] = new Interrupt(privilege);
+	timer = timers[0] = new Timer(privilege);
+	for (int cpu=1; cpu<numCPUs; cpu++) {
+	    interrupts[cpu] = new Interrupt(privilege, cpu);
+	    timers[cpu] = new Timer(privilege, interrupts[cpu], timers[0]);
+	}
 
 	if (Config.getBoolean("Machine.bank"))
 	    bank = new ElevatorBank(privilege);
@@ -176,7 +194,13 @@ public final class Machine {
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
-	    processor = new Processor(privilege, numPhysPages);
+	    processors = new Processor[numCPUs];
+
+	    processors[0] = new Processor(privilege, numPhysPages);
+	    for (int cpu=1; cpu<numCPUs; cpu++) {
+		processors[cpu] =
+		    new Processor(privilege, processors[0], interrupts[cpu]);
+	    }
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -295,14 +319,20 @@ public final class Machine {
     }
 
     /**
-     * Return the hardware interrupt manager.
+     * Return the hardware interrupt manager of the processor that is
+     * currently running.
      *
      * @return	the hardware interrupt manager.
      */
     public static Interrupt interrupt() { return interrupt; }
+
+    /**
+     * Return the hardware interrupt manager of a processor.
+     */
+    static Interrupt interrupt(int cpu) { return interrupts[cpu]; }
     
     /**
-     * Return the hardware timer.
+     * Return the hardware timer of the processor that is currently running.
      *
      * @return	the hardware timer.
      */
@@ -317,11 +347,50 @@ public final class Machine {
     public static ElevatorBank bank() { return bank; }
     
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor that is currently running.
      *
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
-    public static Processor processor() { return processor; }
+    public static Processor processor() {
+	return (processors == null) ? null : processors[currentCPU];
+    }
+
+    /**
+     * Return one of the MIPS processors of a multiprocessor.
+     *
+     * @param	cpu	the number of the processor, from 0 up to
+     *			<tt>numProcessors() - 1</tt>.
+     * @return	the MIPS processor.
+     */
+    public static Processor processor(int cpu) { return processors[cpu]; }
+
+    /**
+     * Return the number of MIPS processors, set by the
+     * <tt>Processor.numCPUs</tt> key in <tt>nachos.conf</tt>.
+     *
+     * @return	the number of processors, or 0 if there are none.
+     */
+    public static int numProcessors() {
+	return (processors == null) ? 0 : processors.length;
+    }
+
+    /**
+     * Return the number of the processor that is currently running, the one
+     * holding the kernel lock. Without a multiprocessor this is always 0.
+     *
+     * @return	the number of the current processor.
+     */
+    public static int currentProcessor() { return currentCPU; }
+
+    /**
+     * Make <i>cpu</i> the current processor, when it has taken the kernel
+     * lock.
+     */
+    static void setCurrentProcessor(int cpu) {
+	currentCPU = cpu;
+	interrupt = interrupts[cpu];
+	timer = timers[cpu];
+    }
     
     /**
      * Return the hardware console.
@@ -351,10 +420,22 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return the runtime statistics, which are printed when Nachos halts. The
+     * kernel may add to the counters it keeps itself, such as
+     * <tt>numDeadlineMisses</tt>, but must not change the others.
+     *
+     * @return	the runtime statistics.
+     */
+    public static Stats stats() { return stats; }
+
     private static Interrupt interrupt = null;
+    private static Interrupt[] interrupts = null;
     private static Timer timer = null;
+    private static Timer[] timers = null;
     private static ElevatorBank bank = null;
-    private static Processor processor = null;
+    private static Processor[] processors = null;
+    private static int currentCPU = 0;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
@@ -4,6 +4,24 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +36,20 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * The <tt>Processor.memory</tt> key in <tt>nachos.conf</tt> selects where the
+ * memory is held: in a Java array (<tt>heap</tt>, the default), in a direct
+ * buffer outside the Java heap (<tt>direct</tt>), or in a buffer mapped from
+ * the host file named by <tt>Processor.memoryFile</tt> (<tt>mapped</tt>),
+ * whose contents outlive Nachos.
+ *
+ * <p>
+ * A TLB is normally refilled by the kernel, on a TLB miss exception. If the
+ * <tt>Processor.tlbRefill</tt> key is <tt>hardware</tt>, the processor
+ * instead walks the page table set by <tt>setPageTable()</tt> itself, and
+ * only traps to the kernel with a page fault if the page table has no valid
+ * entry for the page. The TLB entry it replaces is chosen as set by the
+ * <tt>Processor.tlbReplacement</tt> key: <tt>fifo</tt> (the default),
+ * <tt>random</tt>, or <tt>clock</tt>.
  */
 public final class Processor {
     /**
@@ -29,10 +61,39 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
-	System.out.print(" processor");
+	this(privilege, numPhysPages, null, Machine.interrupt());
+    }
+
+    /**
+     * Allocate another processor for a multiprocessor, sharing the memory of
+     * the first. The new processor has its own registers, TLB and interrupt
+     * controller, and decodes instructions from the same cache as the first.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	first		the first processor.
+     * @param	interrupt	the new processor's interrupt controller.
+     */
+    Processor(Privilege privilege, Processor first, Interrupt interrupt) {
+	this(privilege, first.numPhysPages, first, interrupt);
+    }
 
+    private Processor(Privilege privilege, int numPhysPages,
+		      Processor first, Interrupt interrupt) {
 	this.privilege = privilege;
-	privilege.processor = new ProcessorPrivilege();
+	this.interrupt = interrupt;
+
+	if (first == null) {
+	    System.out.print(" processor");
+	    privilege.processor = new ProcessorPrivilege();
+	}
+
+	// processors running in parallel keep their own counts until they
+	// next enter the kernel
+	if (Config.getInteger("Processor.numCPUs", 1) > 1)
+	    stats = new Stats();
+	else
+	    stats = privilege.stats;
 
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -45,18 +106,119 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	if (first == null) {
+	    memory = allocateMemory(pageSize * numPhysPages);
+	    mainMemory = memory.hasArray() ? memory.array() : null;
+	    decodedPages =
+		new AtomicReferenceArray<DecodedInstruction[]>(numPhysPages);
+	}
+	else {
+	    memory = first.memory;
+	    mainMemory = first.mainMemory;
+	    decodedPages = first.decodedPages;
+	}
+
+	// blocks run on the registers of the processor that built them
+	blockPages = new AtomicReferenceArray<BasicBlock[]>(numPhysPages);
+
+	String mode = Config.getString("Processor.executionMode",
+				       "interpreter");
+	if (mode.equals("interpreter"))
+	    executionMode = modeInterpreter;
+	else if (mode.equals("threaded"))
+	    executionMode = modeThreaded;
+	else if (mode.equals("translated"))
+	    executionMode = modeTranslated;
+	else
+	    Lib.assertNotReached("unknown Processor.executionMode: " + mode);
+
+	// the block modes skip the per-instruction disassembly output
+	if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble))
+	    executionMode = modeInterpreter;
+
+	translationThreshold =
+	    Config.getInteger("Processor.translationThreshold", 100);
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    String refill = Config.getString("Processor.tlbRefill",
+					     "software");
+	    if (refill.equals("hardware"))
+		pageWalker = true;
+	    else if (!refill.equals("software"))
+		Lib.assertNotReached("unknown Processor.tlbRefill: " + refill);
+
+	    String policy = Config.getString("Processor.tlbReplacement",
+					     "fifo");
+	    if (policy.equals("fifo"))
+		tlbReplacement = replaceFIFO;
+	    else if (policy.equals("random"))
+		tlbReplacement = replaceRandom;
+	    else if (policy.equals("clock"))
+		tlbReplacement = replaceClock;
+	    else
+		Lib.assertNotReached("unknown Processor.tlbReplacement: "
+				     + policy);
+
+	    tlbSources = new TranslationEntry[tlbSize];
 	}
 	else {
 	    translations = null;
 	}
     }
 
+    /**
+     * Allocate physical memory of the kind selected by the
+     * <tt>Processor.memory</tt> key.
+     */
+    private ByteBuffer allocateMemory(final int size) {
+	String kind = Config.getString("Processor.memory", "heap");
+	ByteBuffer buffer = null;
+
+	if (kind.equals("heap")) {
+	    buffer = ByteBuffer.allocate(size);
+	}
+	else if (kind.equals("direct")) {
+	    buffer = ByteBuffer.allocateDirect(size);
+	}
+	else if (kind.equals("mapped")) {
+	    final File file = new File(Config.getString("Processor.memoryFile"));
+
+	    try {
+		buffer = (ByteBuffer) privilege.doPrivileged(
+		    new PrivilegedExceptionAction() {
+			public Object run() throws Exception {
+			    FileChannel channel =
+				FileChannel.open(file.toPath(),
+						 StandardOpenOption.READ,
+						 StandardOpenOption.WRITE,
+						 StandardOpenOption.CREATE);
+			    try {
+				return channel.map(FileChannel.MapMode.READ_WRITE,
+						   0, size);
+			    }
+			    finally {
+				channel.close();
+			    }
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		Lib.assertNotReached("cannot map " + file + ": "
+				     + e.getException());
+	    }
+	}
+	else {
+	    Lib.assertNotReached("unknown Processor.memory: " + kind);
+	}
+
+	return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -83,6 +245,11 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * On a multiprocessor, the kernel may switch the thread running user
+     * code to another processor while it handles an exception or interrupt.
+     * The thread then goes on running instructions on that processor.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -91,17 +258,238 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
-	
-	while (true) {
-	    try {
+	Processor processor = this;
+	while (true)
+	    processor = processor.runBatch();
+    }
+
+    /**
+     * Run as many instructions as possible before the next interrupt is due,
+     * and then credit their ticks all at once. Since that tick is the one
+     * after which the interrupt is due, interrupts happen at the same
+     * instructions as if time advanced after every instruction. On a
+     * multiprocessor, the instructions run without the kernel lock, so that
+     * the processors run them in parallel.
+     *
+     * @return	the processor the current thread is to go on running on.
+     */
+    private Processor runBatch() {
+	int limit = privilege.interrupt.userTicksUntilDue();
+	executed = 0;
+
+	MipsException raised = null;
+
+	interrupt.leaveKernel();
+	try {
+	    if (executionMode == modeInterpreter)
+		interpret(instruction, limit);
+	    else
+		runBlocks(instruction, limit);
+	}
+	catch (MipsException e) {
+	    raised = e;
+	}
+	interrupt.enterKernel(executed);
+
+	flushStats();
+	translateHotBlocks();
+
+	// the batch stopped short of the next interrupt
+	if (raised != null) {
+	    raised.handle();
+	    privilege.interrupt.tick(false);
+	}
+	else {
+	    interrupt.takeInterrupts();
+	}
+
+	return Machine.processor();
+    }
+
+    /**
+     * Execute up to <i>limit</i> instructions with the reference
+     * interpreter, counting them in <tt>executed</tt>.
+     *
+     * @param	inst	the instruction state to use.
+     * @param	limit	the number of instructions to execute.
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void interpret(Instruction inst, int limit) throws MipsException {
+	while (executed < limit) {
+	    inst.run();
+	    executed++;
+	}
+    }
+
+    /**
+     * Execute up to <i>limit</i> instructions a basic block at a time,
+     * counting them in <tt>executed</tt>. A block is cut short if it would
+     * run past the limit, or if it writes to the page holding the block.
+     *
+     * <p>
+     * In the translated execution mode, a block that has run often enough is
+     * translated to JVM bytecode, which is used from then on whenever the
+     * whole block fits within the limit.
+     *
+     * @param	inst	the instruction state to use for instructions that
+     *			cannot be run as part of a block.
+     * @param	limit	the number of instructions to execute.
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runBlocks(Instruction inst, int limit) throws MipsException {
+	while (executed < limit) {
+	    int pc = registers[regPC];
+
+	    /* A block assumes its instructions run sequentially from the
+	     * first one, which is not the case in a branch delay slot (nextPC
+	     * is then the branch target). Let the interpreter handle those.
+	     */
+	    if (registers[regNextPC] != pc+4) {
 		inst.run();
+		executed++;
+		continue;
 	    }
-	    catch (MipsException e) {
-		e.handle();
+
+	    BasicBlock block = fetchBlock(pc);
+	    Operation[] operations = block.operations;
+	    int remaining = limit - executed;
+
+	    if (block.translation != null && operations.length <= remaining) {
+		int count;
+		try {
+		    count = block.translation.run(registers, pc, 0);
+		}
+		catch (MipsException e) {
+		    // translated code leaves the PC at the faulting instruction
+		    count = (registers[regPC] - pc) / 4;
+		    executed += count;
+		    stats.numTranslatedInstructions += count;
+		    throw e;
+		}
+
+		executed += count;
+		stats.numTranslatedInstructions += count;
+		continue;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    int end = Math.min(operations.length, remaining);
+	    int i = 0;
+
+	    while (i < end && block.valid) {
+		operations[i].run();
+		i++;
+		executed++;
+	    }
+
+	    if (executionMode == modeTranslated && i == operations.length &&
+		block.valid && block.runs < translationThreshold &&
+		++block.runs == translationThreshold) {
+		// defining a class is privileged, so must wait for the kernel
+		if (stats != privilege.stats)
+		    hotBlocks.add(block);
+		else
+		    block.translation = translate(block);
+	    }
+	}
+    }
+
+    /**
+     * Translate the blocks that became hot while this processor of a
+     * multiprocessor ran without the kernel lock.
+     */
+    private void translateHotBlocks() {
+	for (BasicBlock block : hotBlocks) {
+	    if (block.valid)
+		block.translation = translate(block);
+	}
+
+	hotBlocks.clear();
+    }
+
+    /**
+     * Add the counts this processor of a multiprocessor kept while it ran
+     * without the kernel lock to the statistics, and reset them.
+     */
+    private void flushStats() {
+	if (stats == privilege.stats)
+	    return;
+
+	privilege.stats.numPageFaults += stats.numPageFaults;
+	privilege.stats.numTLBMisses += stats.numTLBMisses;
+	privilege.stats.numPageWalks += stats.numPageWalks;
+	privilege.stats.numTranslatedInstructions +=
+	    stats.numTranslatedInstructions;
+
+	stats.numPageFaults = 0;
+	stats.numTLBMisses = 0;
+	stats.numPageWalks = 0;
+	stats.numTranslatedInstructions = 0;
+    }
+
+    /**
+     * Translate a basic block into a new hidden class, or reuse the class
+     * generated for an earlier block with the same instructions, e.g. when
+     * a program is loaded again.
+     *
+     * @param	block	the block to translate.
+     * @return	the translated block, or <tt>null</tt> if the block could not
+     *		be translated.
+     */
+    private TranslatedBlock translate(BasicBlock block) {
+	DecodedInstruction[] instructions = block.instructions;
+
+	char[] words = new char[instructions.length*2];
+	for (int i=0; i<instructions.length; i++) {
+	    words[i*2] = (char) (instructions[i].value >>> 16);
+	    words[i*2+1] = (char) instructions[i].value;
+	}
+	String key = new String(words);
+
+	MethodHandle constructor = translatedClasses.get(key);
+	if (constructor == null) {
+	    final byte[] classFile =
+		new BlockTranslator(instructions).translate();
+	    if (classFile == null)
+		return null;
+
+	    final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	    constructor = (MethodHandle)
+		privilege.doPrivileged(new PrivilegedAction() {
+			public Object run() {
+			    try {
+				MethodHandles.Lookup translated =
+				    lookup.defineHiddenClass(classFile, true);
+
+				return translated.findConstructor(
+				    translated.lookupClass(),
+				    MethodType.methodType(void.class,
+							  Processor.class,
+							  BasicBlock.class));
+			    }
+			    catch (Throwable e) {
+				Lib.debug(dbgTranslation,
+					  "could not translate block: " + e);
+				return null;
+			    }
+			}
+		    });
+
+	    if (constructor == null)
+		return null;
+
+	    if (translatedClasses.size() == maxTranslatedClasses)
+		translatedClasses.clear();
+
+	    translatedClasses.put(key, constructor);
+	}
+
+	try {
+	    return (TranslatedBlock) constructor.invoke(this, block);
+	}
+	catch (Throwable e) {
+	    Lib.assertNotReached();
+	    return null;
 	}
     }
 
@@ -141,7 +529,8 @@ public final class Processor {
      * <p>
      * If <tt>true</tt>, this processor has a software-managed TLB;
      * use <tt>getTLBSize()</tt>, <tt>readTLBEntry()</tt>, and
-     * <tt>writeTLBEntry()</tt>.
+     * <tt>writeTLBEntry()</tt>. If it also has a page walker, it refills the
+     * TLB from the page table set with <tt>setPageTable()</tt>.
      *
      * <p>
      * Using a method associated with the wrong address translation mechanism
@@ -153,15 +542,34 @@ public final class Processor {
 	return usingTLB;
     }
 
+    /**
+     * Test whether this processor refills its TLB by walking the page table,
+     * rather than raising a TLB miss exception.
+     *
+     * <p>
+     * If <tt>true</tt>, the kernel need only set the page table of the
+     * running process with <tt>setPageTable()</tt>, and handle page faults.
+     * The processor sets the used and dirty bits of a page table entry
+     * whenever it sets them in a TLB entry filled from it. As with a real
+     * MMU, a kernel that changes an entry whose page may be in the TLB must
+     * still invalidate the TLB entry, with <tt>writeTLBEntry()</tt> or
+     * <tt>shootdownTLB()</tt>.
+     *
+     * @return	<tt>true</tt> if this processor has a page walker.
+     */
+    public boolean hasPageWalker() {
+	return pageWalker;
+    }
+
     /**
      * Get the current page table, set by the last call to setPageTable().
      *
      * @return	the current page table.
      */
     public TranslationEntry[] getPageTable() {
-	Lib.assertTrue(!usingTLB);
+	Lib.assertTrue(!usingTLB || pageWalker);
 
-	return translations;
+	return usingTLB ? pageTable : translations;
     }
 
     /**
@@ -169,12 +577,29 @@ public final class Processor {
      * the specified page table. The size of the current address space will be
      * determined from the length of the page table array.
      *
+     * <p>
+     * With a page walker, this also invalidates every TLB entry, since the
+     * entries may belong to another address space.
+     *
      * @param	pageTable	the page table to use.
      */
     public void setPageTable(TranslationEntry[] pageTable) {
-	Lib.assertTrue(!usingTLB);
+	Lib.assertTrue(!usingTLB || pageWalker);
+
+	if (!usingTLB) {
+	    this.translations = pageTable;
+	    return;
+	}
+
+	this.pageTable = pageTable;
+
+	for (int i=0; i<tlbSize; i++) {
+	    translations[i].valid = false;
+	    tlbSources[i] = null;
+	}
 
-	this.translations = pageTable;
+	Arrays.fill(fetchMicroTLB, -1);
+	Arrays.fill(dataMicroTLB, -1);
     }
 
     /**
@@ -215,7 +640,13 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	// the micro-TLBs may hold the old entry, or an entry for the new page
+	// that the new entry should now be found before
+	forgetMicroTLB(translations[number].vpn);
+	forgetMicroTLB(entry.vpn);
+
 	translations[number] = new TranslationEntry(entry);
+	tlbSources[number] = null;
     }
 
     /**
@@ -232,12 +663,264 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * A kernel that modifies this array directly must call
+     * <tt>invalidatePage()</tt> for every physical page it writes, so that
+     * the processor does not keep executing stale instructions.
+     *
+     * <p>
+     * There is no such array unless physical memory is held on the Java
+     * heap. Use <tt>readMemory()</tt>, <tt>writeMemory()</tt>, and
+     * <tt>fillMemory()</tt>, which work wherever memory is held, or
+     * <tt>getMemoryBuffer()</tt>.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is not held in an array");
+
 	return mainMemory;
     }
 
+    /**
+     * Return a little-endian buffer over physical memory, wherever it is
+     * held. The buffer has its own position and limit, so only its absolute
+     * get and put methods should be used. Like <tt>getMemory()</tt>, a kernel
+     * that writes through the buffer must call <tt>invalidatePage()</tt>.
+     *
+     * @return	a buffer over physical memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	return memory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the physical address of the first byte to copy.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte of the array to copy into.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	memory.get(paddr, data, offset, length);
+    }
+
+    /**
+     * Copy bytes from an array into physical memory, discarding any
+     * instructions decoded from the pages written.
+     *
+     * @param	paddr	the physical address of the first byte to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte of the array to copy from.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	memory.put(paddr, data, offset, length);
+	invalidatePages(paddr, length);
+    }
+
+    /**
+     * Set bytes of physical memory to a value, discarding any instructions
+     * decoded from the pages written.
+     *
+     * @param	paddr	the physical address of the first byte to set.
+     * @param	length	the number of bytes to set.
+     * @param	value	the value to set them to.
+     */
+    public void fillMemory(int paddr, int length, byte value) {
+	if (mainMemory != null) {
+	    Arrays.fill(mainMemory, paddr, paddr+length, value);
+	}
+	else {
+	    for (int i=0; i<length; i++)
+		memory.put(paddr+i, value);
+	}
+
+	invalidatePages(paddr, length);
+    }
+
+    /**
+     * Write any changes to physical memory through to the file it is mapped
+     * from, if it is. The file then holds a snapshot of memory, which a later
+     * run of Nachos with the same file starts with.
+     */
+    public void syncMemory() {
+	if (memory instanceof MappedByteBuffer)
+	    ((MappedByteBuffer) memory).force();
+    }
+
+    private void invalidatePages(int paddr, int length) {
+	if (length <= 0)
+	    return;
+
+	int lastPage = (paddr+length-1) / pageSize;
+	for (int ppn=paddr/pageSize; ppn<=lastPage; ppn++) {
+	    if (decodedPages.get(ppn) != null)
+		invalidatePage(ppn);
+	}
+    }
+
+    /**
+     * Discard any decoded instructions the processor has cached for the
+     * specified physical page. Stores performed by user instructions do this
+     * automatically; the kernel must do it whenever it changes the contents
+     * of a page through <tt>getMemory()</tt>, e.g. when loading a page from
+     * an executable or copying data into a process's address space. On a
+     * multiprocessor, the instructions are discarded by every processor, and
+     * any instruction a processor fetches from the page afterwards is decoded
+     * from its new contents.
+     *
+     * @param	ppn	the physical page whose contents have changed.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages.set(ppn, null);
+
+	for (int cpu=0; cpu<Machine.numProcessors(); cpu++)
+	    Machine.processor(cpu).invalidateBlocks(ppn);
+    }
+
+    /**
+     * Invalidate any entry in the TLB of every processor that maps the
+     * specified physical page, for example because the kernel is about to
+     * give the page to another address space, and return once no processor
+     * can use such an entry any more. A processor that is running user
+     * instructions is sent an inter-processor interrupt to invalidate its
+     * entries, counted in <tt>Stats.numTLBShootdowns</tt>, and this waits
+     * until it has taken it, at the end of its current batch of
+     * instructions. Must be called on the current processor.
+     *
+     * @param	ppn	the physical page being unmapped.
+     */
+    public void shootdownTLB(final int ppn) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+	Lib.assertTrue(this == Machine.processor());
+
+	for (int cpu=0; cpu<Machine.numProcessors(); cpu++) {
+	    final Processor processor = Machine.processor(cpu);
+
+	    if (processor == this) {
+		invalidateTLB(ppn);
+		continue;
+	    }
+
+	    Runnable flush = new Runnable() {
+		    public void run() { processor.invalidateTLB(ppn); }
+		};
+	    
+	    if (processor.interrupt.shootdown(flush))
+		privilege.stats.numTLBShootdowns++;
+	}
+    }
+
+    /**
+     * Invalidate any entry in this processor's TLB that maps the specified
+     * physical page.
+     */
+    private void invalidateTLB(int ppn) {
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry entry = translations[i];
+	    if (entry.valid && entry.ppn == ppn)
+		entry.valid = false;
+	}
+    }
+
+    /**
+     * Discard any entries the micro-TLBs hold for a virtual page.
+     */
+    private void forgetMicroTLB(int vpn) {
+	int slot = vpn & (microTLBSize-1);
+	fetchMicroTLB[slot] = -1;
+	dataMicroTLB[slot] = -1;
+    }
+
+    /**
+     * Service a TLB miss by walking the page table, and fill a TLB entry
+     * from the page table entry found.
+     *
+     * @param	vpn	the virtual page that missed.
+     * @param	vaddr	the virtual address that missed.
+     * @return	the index of the TLB entry filled.
+     * @exception	MipsException	if the page table has no valid entry
+     *					for the page.
+     */
+    private int walkPageTable(int vpn, int vaddr) throws MipsException {
+	stats.numPageWalks++;
+
+	if (pageTable == null || vpn >= pageTable.length ||
+	    pageTable[vpn] == null || !pageTable[vpn].valid) {
+	    stats.numPageFaults++;
+	    Lib.debug(dbgProcessor, "\t\tpage fault");
+	    throw exception(exceptionPageFault, vaddr);
+	}
+
+	TranslationEntry source = pageTable[vpn];
+	int index = chooseTLBVictim();
+
+	TranslationEntry entry = translations[index];
+	forgetMicroTLB(entry.vpn);
+
+	// the processor owns its TLB entries, so refill one in place
+	entry.vpn = vpn;
+	entry.ppn = source.ppn;
+	entry.valid = true;
+	entry.readOnly = source.readOnly;
+	entry.used = false;
+	entry.dirty = false;
+	tlbSources[index] = source;
+
+	return index;
+    }
+
+    /**
+     * Choose the TLB entry to refill after a page walk: an invalid entry if
+     * there is one, or else the entry chosen by the replacement policy.
+     *
+     * @return	the index of the TLB entry to refill.
+     */
+    private int chooseTLBVictim() {
+	for (int i=0; i<tlbSize; i++) {
+	    if (!translations[i].valid)
+		return i;
+	}
+
+	switch (tlbReplacement) {
+	case replaceRandom:
+	    return Lib.random(tlbSize);
+
+	case replaceClock:
+	    // skip entries used since the hand last passed them
+	    while (translations[tlbHand].used) {
+		translations[tlbHand].used = false;
+		tlbHand = (tlbHand+1) % tlbSize;
+	    }
+	    // fall through
+
+	default:
+	    int victim = tlbHand;
+	    tlbHand = (tlbHand+1) % tlbSize;
+	    return victim;
+	}
+    }
+
+    /**
+     * Discard the basic blocks this processor has built from a physical page.
+     */
+    private void invalidateBlocks(int ppn) {
+	BasicBlock[] blocks = blockPages.getAndSet(ppn, null);
+	if (blocks != null) {
+	    // a block from this page may be running; make it stop
+	    for (int i=0; i<blocks.length; i++) {
+		if (blocks[i] != null)
+		    blocks[i].valid = false;
+	    }
+	}
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -286,13 +969,22 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * In TLB mode, the TLB entry found for a page is remembered in a
+     * micro-TLB, so that the next reference to the page need not search the
+     * TLB. Instruction fetches and data references have separate micro-TLBs.
+     * A page walker services a miss in the TLB with <tt>walkPageTable()</tt>.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	microTLB	the micro-TLB to use, <tt>fetchMicroTLB</tt> or
+     *				<tt>dataMicroTLB</tt>.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, boolean writing,
+			  int[] microTLB)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
@@ -301,7 +993,7 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw exception(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -309,45 +1001,66 @@ public final class Processor {
 	int offset = offsetFromAddress(vaddr);
 
 	TranslationEntry entry = null;
+	// the page table entry a walked TLB entry was filled from, if any
+	TranslationEntry source = null;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
-		privilege.stats.numPageFaults++;
+		stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw exception(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, try the micro-TLB, which holds the index of a TLB entry only
+	// while it is the first TLB entry for its vpn; the entry may since have
+	// been invalidated by a shootdown
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
+	    int slot = vpn & (microTLBSize-1);
+	    int index = microTLB[slot];
+
+	    // on a miss, look through all TLB entries for matching vpn
+	    if (index < 0 || translations[index].vpn != vpn ||
+		!translations[index].valid) {
+		index = -1;
+		for (int i=0; i<tlbSize; i++) {
+		    if (translations[i].valid && translations[i].vpn == vpn) {
+			index = i;
+			break;
+		    }
 		}
+		if (index < 0) {
+		    if (!pageWalker) {
+			stats.numTLBMisses++;
+			Lib.debug(dbgProcessor, "\t\tTLB miss");
+			throw exception(exceptionTLBMiss, vaddr);
+		    }
+
+		    index = walkPageTable(vpn, vaddr);
+		}
+
+		microTLB[slot] = index;
 	    }
-	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
-	    }
+
+	    entry = translations[index];
+	    source = tlbSources[index];
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw exception(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw exception(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -355,6 +1068,12 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
+	if (source != null) {
+	    source.used = true;
+	    if (writing)
+		source.dirty = true;
+	}
+
 	int paddr = (ppn*pageSize) + offset;
 
 	if (Lib.test(dbgProcessor))
@@ -363,51 +1082,175 @@ public final class Processor {
     }
 
     /**
-     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
-     * and return the result.
+     * Fetch the instruction at virtual address <i>vaddr</i> and return its
+     * decoded form. The decoding is cached by physical address, so a word is
+     * only decoded again after its page has been invalidated.
      *
-     * @param	vaddr	the virtual address to read from.
-     * @param	size	the number of bytes to read (1, 2, or 4).
-     * @return		the value read.
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the decoded instruction.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int readMem(int vaddr, int size) throws MipsException {
+    private DecodedInstruction fetchDecoded(int vaddr) throws MipsException {
 	if (Lib.test(dbgProcessor))
-	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size);
+	    System.out.println("\tfetch vaddr=0x" + Lib.toHexString(vaddr));
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	DecodedInstruction decoded =
+	    decodeAt(translate(vaddr, 4, false, fetchMicroTLB));
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
-			       Lib.toHexString(value, size*2));
-	
-	return value;
+			       Lib.toHexString(decoded.value, 8));
+
+	return decoded;
     }
-    
+
     /**
-     * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
-     * starting at <i>vaddr</i>.
+     * Return the decoded form of the instruction word at physical address
+     * <i>paddr</i>, decoding it only if it is not already cached.
      *
-     * @param	vaddr	the virtual address to write to.
-     * @param	size	the number of bytes to write (1, 2, or 4).
-     * @param	value	the value to store.
-     * @exception	MipsException	if a translation error occurred.
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return		the decoded instruction.
      */
-    private void writeMem(int vaddr, int size, int value)
-	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size + ", value=0x"
-			       + Lib.toHexString(value, size*2));
+    private DecodedInstruction decodeAt(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction[] page = decodedPages.get(ppn);
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    page = cachePage(decodedPages, ppn, page);
+	}
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	DecodedInstruction decoded = page[index];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction((int) intView.get(memory, paddr));
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Install a new, empty cache for a physical page, unless another
+     * processor installed one first, and return the one installed. Because
+     * the page's entry is only ever replaced when it is <tt>null</tt>, this
+     * happens after any <tt>invalidatePage()</tt> that emptied it, so the
+     * memory read to fill the cache is at least as new as that write.
+     */
+    private static <T> T cachePage(AtomicReferenceArray<T> pages, int ppn,
+				   T page) {
+	while (!pages.compareAndSet(ppn, null, page)) {
+	    T other = pages.get(ppn);
+	    if (other != null)
+		return other;
+	}
+
+	return page;
+    }
+
+    /**
+     * Return the basic block starting at virtual address <i>vaddr</i>,
+     * building it if it is not already cached. Blocks are cached by physical
+     * address, like decoded instructions.
+     *
+     * @param	vaddr	the virtual address of the first instruction.
+     * @return		the basic block.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private BasicBlock fetchBlock(int vaddr) throws MipsException {
+	int paddr = translate(vaddr, 4, false, fetchMicroTLB);
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	BasicBlock[] page = blockPages.get(ppn);
+	if (page == null) {
+	    page = new BasicBlock[pageSize / 4];
+	    page = cachePage(blockPages, ppn, page);
+	}
+
+	BasicBlock block = page[index];
+	if (block == null) {
+	    block = new BasicBlock(paddr);
+	    page[index] = block;
+	}
+
+	return block;
+    }
+
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+     * and return the result.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMem(int vaddr, int size) throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=" + size);
+
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	int paddr = translate(vaddr, size, false, dataMicroTLB);
+	int value;
+
+	switch (size) {
+	case 4:
+	    value = (int) intView.get(memory, paddr);
+	    break;
+	case 2:
+	    value = (short) shortView.get(memory, paddr);
+	    break;
+	default:
+	    value = memory.get(paddr);
+	    break;
+	}
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tvalue read=0x" +
+			       Lib.toHexString(value, size*2));
+	
+	return value;
+    }
+    
+    /**
+     * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
+     * starting at <i>vaddr</i>.
+     *
+     * @param	vaddr	the virtual address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void writeMem(int vaddr, int size, int value)
+	throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=" + size + ", value=0x"
+			       + Lib.toHexString(value, size*2));
+
+	Lib.assertTrue(size==1 || size==2 || size==4);
+	
+	int paddr = translate(vaddr, size, true, dataMicroTLB);
+
+	switch (size) {
+	case 4:
+	    intView.set(memory, paddr, value);
+	    break;
+	case 2:
+	    shortView.set(memory, paddr, (short) value);
+	    break;
+	default:
+	    memory.put(paddr, (byte) value);
+	    break;
+	}
+
+	// the page may hold code, so drop any instructions decoded from it
+	int ppn = paddr / pageSize;
+	if (decodedPages.get(ppn) != null || blockPages.get(ppn) != null)
+	    invalidatePage(ppn);
     }
 
     /**
@@ -463,6 +1306,100 @@ public final class Processor {
 	registers[regNextPC] = nextPC;
     }
 
+    /**
+     * Multiply two operands as MULT/MULTU does, into the Lo and Hi registers.
+     */
+    private void multiply(long src1, long src2) {
+	long dst = src1 * src2;
+	registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	registers[regHi] = (int) Lib.extract(dst, 32, 32);
+    }
+
+    /**
+     * Divide two operands as DIV/DIVU does, into the Lo and Hi registers.
+     *
+     * @exception	MipsException	if the division overflowed.
+     */
+    private void divide(long src1, long src2) throws MipsException {
+	try {
+	    registers[regLo] = (int) (src1 / src2);
+	    registers[regHi] = (int) (src1 % src2);
+	    if (registers[regLo]*src2 + registers[regHi] != src1)
+		throw new ArithmeticException();
+	}
+	catch (ArithmeticException e) {
+	    throw exception(exceptionOverflow);
+	}
+    }
+
+    /**
+     * Start the delayed load performed by LWL from <i>addr</i> into
+     * <i>dstReg</i>.
+     *
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void loadWordLeft(int dstReg, int addr) throws MipsException {
+	int value = readMem(addr&~0x3, 4);
+
+	// LWL shifts the input left so the addressed byte is highest
+	int preserved = (3-(addr&0x3))*8;
+
+	delayedLoad(dstReg, value << preserved, -1 << preserved);
+    }
+
+    /**
+     * Start the delayed load performed by LWR from <i>addr</i> into
+     * <i>dstReg</i>.
+     *
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void loadWordRight(int dstReg, int addr) throws MipsException {
+	int value = readMem(addr&~0x3, 4);
+
+	// LWR shifts the input right so the addressed byte is lowest
+	int preserved = (addr&0x3)*8;
+
+	delayedLoad(dstReg, value >>> preserved, -1 >>> preserved);
+    }
+
+    /**
+     * Perform the store done by SWL of <i>src2</i> to <i>addr</i>.
+     *
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void storeWordLeft(int addr, long src2) throws MipsException {
+	int value = readMem(addr&~0x3, 4);
+
+	// SWL shifts highest order byte into the addressed position
+	int preserved = (3-(addr&0x3))*8;
+	int mask = -1 >>> preserved;
+	long dst = src2 >>> preserved;
+
+	// merge values
+	dst = (dst & mask) | (value & ~mask);
+
+	writeMem(addr&~0x3, 4, (int) dst);
+    }
+
+    /**
+     * Perform the store done by SWR of <i>src2</i> to <i>addr</i>.
+     *
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private void storeWordRight(int addr, long src2) throws MipsException {
+	int value = readMem(addr&~0x3, 4);
+
+	// SWR shifts the lowest order byte into the addressed position
+	int preserved = (addr&0x3)*8;
+	int mask = -1 << preserved;
+	long dst = src2 << preserved;
+
+	// merge values
+	dst = (dst & mask) | (value & ~mask);
+
+	writeMem(addr&~0x3, 4, (int) dst);
+    }
+
     /** Caused by a syscall instruction. */
     public static final int exceptionSyscall = 0;
     /** Caused by an access to an invalid virtual page. */
@@ -547,6 +1484,46 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /**
+     * The number of entries in each micro-TLB. A micro-TLB is direct-mapped,
+     * by the low bits of the vpn.
+     */
+    private static final int microTLBSize = 16;
+    /**
+     * Indexes into <tt>translations</tt> of the TLB entries last used to
+     * fetch instructions, or <tt>-1</tt>.
+     */
+    private int[] fetchMicroTLB = newMicroTLB();
+    /**
+     * Indexes into <tt>translations</tt> of the TLB entries last used to read
+     * or write data, or <tt>-1</tt>.
+     */
+    private int[] dataMicroTLB = newMicroTLB();
+
+    private static int[] newMicroTLB() {
+	int[] microTLB = new int[microTLBSize];
+	Arrays.fill(microTLB, -1);
+	return microTLB;
+    }
+
+    /** <tt>true</tt> if TLB misses are serviced by walking the page table. */
+    private boolean pageWalker = false;
+    /** The page table walked on a TLB miss. */
+    private TranslationEntry[] pageTable = null;
+    /**
+     * The page table entry each TLB entry was filled from by a page walk, or
+     * <tt>null</tt> if the kernel filled it.
+     */
+    private TranslationEntry[] tlbSources;
+
+    private static final int replaceFIFO = 0;
+    private static final int replaceRandom = 1;
+    private static final int replaceClock = 2;
+    /** The policy for choosing which TLB entry a page walk refills. */
+    private int tlbReplacement;
+    /** The next TLB entry to replace, or the hand of the clock. */
+    private int tlbHand = 0;
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -554,35 +1531,134 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
+    private ByteBuffer memory;
+    /** The array holding <tt>memory</tt>, or <tt>null</tt> if it is not. */
     private byte[] mainMemory;
 
+    /** Little-endian views of main memory as words and halfwords. */
+    private static final VarHandle intView =
+	MethodHandles.byteBufferViewVarHandle(int[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle shortView =
+	MethodHandles.byteBufferViewVarHandle(short[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. A page's entry is <tt>null</tt> until an instruction is
+     * fetched from it, and is reset to <tt>null</tt> whenever it is written.
+     * The processors of a multiprocessor share these, and write them while
+     * running user instructions without the kernel lock, so each page's
+     * entry is read and replaced atomically.
+     */
+    private AtomicReferenceArray<DecodedInstruction[]> decodedPages;
+    /**
+     * Basic blocks, indexed the same way as <tt>decodedPages</tt> by the
+     * physical address of their first instruction. Another processor that
+     * writes a page empties this processor's entry for it.
+     */
+    private AtomicReferenceArray<BasicBlock[]> blockPages;
+
+    /** Execute one instruction at a time with <tt>Instruction</tt>. */
+    private static final int modeInterpreter = 0;
+    /** Execute basic blocks of prebuilt <tt>Operation</tt> handlers. */
+    private static final int modeThreaded = 1;
+    /** Like <tt>modeThreaded</tt>, but translate hot blocks to bytecode. */
+    private static final int modeTranslated = 2;
+    /**
+     * How user instructions are executed, selected by the
+     * <tt>Processor.executionMode</tt> key in <tt>nachos.conf</tt>.
+     */
+    private int executionMode;
+    /**
+     * The number of times a block must run through its handlers before it
+     * is translated, from the <tt>Processor.translationThreshold</tt> key.
+     */
+    private int translationThreshold;
+    /**
+     * Constructors for the classes generated so far, keyed by the
+     * instructions they were generated from.
+     */
+    private HashMap<String, MethodHandle> translatedClasses =
+	new HashMap<String, MethodHandle>();
+    /** The most generated classes to keep before starting over. */
+    private static final int maxTranslatedClasses = 4096;
+
+    /**
+     * The number of instructions executed so far in the current batch, whose
+     * ticks have not yet been credited.
+     */
+    private int executed;
+
+    /** This processor's interrupt controller. */
+    private Interrupt interrupt;
+    /**
+     * The statistics this processor counts user events in: its own on a
+     * multiprocessor, until it next enters the kernel, or else the shared
+     * ones.
+     */
+    private Stats stats;
+    /** Blocks waiting to be translated when the kernel is next entered. */
+    private ArrayList<BasicBlock> hotBlocks = new ArrayList<BasicBlock>();
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgTranslation = 'j';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
-	    finishLoad();
+	    // the interrupt is taken by whichever processor is running
+	    Machine.processor().finishLoad();
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Prepare this processor's exception to be thrown for a user exception.
+     * Exceptions are raised every few hundred instructions by a program that
+     * pages, so rather than allocating a new exception each time, a processor
+     * reuses the same one, which has no stack trace.
+     *
+     * @param	cause	the exception number.
+     * @return	the exception to throw.
+     */
+    private MipsException exception(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    this.cause = cause;
-	}
+	exception.cause = cause;
+	exception.hasBadVAddr = false;
+	return exception;
+    }
+
+    /**
+     * Prepare this processor's exception to be thrown for a user exception
+     * caused by a virtual address.
+     *
+     * @param	cause		the exception number.
+     * @param	badVAddr	the virtual address that caused it.
+     * @return	the exception to throw.
+     */
+    private MipsException exception(int cause, int badVAddr) {
+	exception(cause);
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	exception.hasBadVAddr = true;
+	exception.badVAddr = badVAddr;
+	return exception;
+    }
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+    private class MipsException extends Exception {
+	MipsException() {
+	    // no message or cause, and no stack trace
+	    super(null, null, false, false);
 	}
 
+	/**
+	 * Pass this exception to the kernel. Its fields are only read before
+	 * the kernel's handler runs, since the handler may switch to a thread
+	 * that raises another exception on this processor.
+	 */
 	public void handle() {
 	    writeRegister(regCause, cause);
 
@@ -605,7 +1681,13 @@ public final class Processor {
 
 	private boolean hasBadVAddr = false;
 	private int cause, badVAddr;
-    }	
+    }
+
+    /** The exception this processor throws for every user exception. */
+    private final MipsException exception = new MipsException();
+
+    /** The instruction state used to interpret instructions one by one. */
+    private final Instruction instruction = new Instruction();
 
     private class Instruction {
 	public void run() throws MipsException {
@@ -626,78 +1708,45 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    decoded = fetchDecoded(registers[regPC]);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // the parts that depend only on the instruction word are cached
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.jumpOffset;
 	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+		jtarget = (registers[regNextPC]&0xF0000000) | decoded.jumpOffset;
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1918,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw exception(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1988,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw exception(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +2058,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw exception(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +2068,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw exception(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,6 +2101,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +2113,1063 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A run of instructions that always execute in sequence once the first
+     * one does. A block ends after the delay slot of its first branch or
+     * jump, after an instruction that always causes an exception, or at the
+     * end of its page, whichever comes first.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    int end = (paddr / pageSize + 1) * pageSize;
+	    int length = 0;
+	    boolean delaySlot = false;
+
+	    DecodedInstruction[] decoded =
+		new DecodedInstruction[(end - paddr) / 4];
+
+	    for (int addr=paddr; addr<end; addr+=4) {
+		DecodedInstruction inst = decodeAt(addr);
+		decoded[length++] = inst;
+
+		if (delaySlot || endsBlock(inst))
+		    break;
+
+		delaySlot = Lib.test(Mips.BRANCH, inst.flags);
+	    }
+
+	    instructions = new DecodedInstruction[length];
+	    System.arraycopy(decoded, 0, instructions, 0, length);
+
+	    operations = new Operation[length];
+	    for (int i=0; i<length; i++)
+		operations[i] = newOperation(instructions[i]);
+	}
+
+	/**
+	 * Test whether <i>decoded</i> always causes an exception, so that no
+	 * instruction after it can belong to the same block.
+	 */
+	private boolean endsBlock(DecodedInstruction decoded) {
+	    switch (decoded.operation) {
+	    case Mips.SYSCALL:
+	    case Mips.UNIMPL:
+	    case Mips.INVALID:
+		return true;
+	    default:
+		return false;
+	    }
+	}
+
+	/** The instructions in this block, in order. */
+	final DecodedInstruction[] instructions;
+	/** The handlers for the instructions in this block, in order. */
+	final Operation[] operations;
+	/**
+	 * Cleared when the page holding this block is written, so that a block
+	 * that modifies its own code stops before running stale instructions.
+	 * Volatile, since another processor may write the page.
+	 */
+	volatile boolean valid = true;
+	/** The number of times this block has run through its handlers. */
+	int runs = 0;
+	/** The translation of this block, or <tt>null</tt> if it has none. */
+	TranslatedBlock translation = null;
+    }
+
+    /**
+     * Create the handler for a decoded instruction.
+     *
+     * @param	decoded	the decoded instruction.
+     * @return	a handler with the same effect as <tt>Instruction.run()</tt>.
+     */
+    private Operation newOperation(DecodedInstruction decoded) {
+	switch (decoded.operation) {
+	case Mips.ADD:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src1() + src2());
+		    }
+		};
+	case Mips.SUB:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src1() - src2());
+		    }
+		};
+	case Mips.MULT:
+	    return new Operation(decoded) {
+		    void run() {
+			multiply(src1(), src2());
+			advance();
+		    }
+		};
+	case Mips.DIV:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			divide(src1(), src2());
+			advance();
+		    }
+		};
+	case Mips.SLL:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src2() << (src1()&0x1F));
+		    }
+		};
+	case Mips.SRA:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src2() >> (src1()&0x1F));
+		    }
+		};
+	case Mips.SRL:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src2() >>> (src1()&0x1F));
+		    }
+		};
+	case Mips.SLT:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack((src1()<src2()) ? 1 : 0);
+		    }
+		};
+	case Mips.AND:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src1() & src2());
+		    }
+		};
+	case Mips.OR:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src1() | src2());
+		    }
+		};
+	case Mips.NOR:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(~(src1() | src2()));
+		    }
+		};
+	case Mips.XOR:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(src1() ^ src2());
+		    }
+		};
+	case Mips.LUI:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(imm << 16);
+		    }
+		};
+	case Mips.MFLO:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(registers[regLo]);
+		    }
+		};
+	case Mips.MFHI:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeBack(registers[regHi]);
+		    }
+		};
+	case Mips.MTLO:
+	    return new Operation(decoded) {
+		    void run() {
+			registers[regLo] = (int) src1();
+			advance();
+		    }
+		};
+	case Mips.MTHI:
+	    return new Operation(decoded) {
+		    void run() {
+			registers[regHi] = (int) src1();
+			advance();
+		    }
+		};
+	case Mips.JUMP:
+	    if (decoded.format == Mips.RFMT) {
+		return new Operation(decoded) {
+			void run() {
+			    branch(true, registers[rs]);
+			}
+		    };
+	    }
+	    else {
+		return new Operation(decoded) {
+			void run() {
+			    branch(true, (registers[regNextPC]&0xF0000000) |
+				   jumpOffset);
+			}
+		    };
+	    }
+	case Mips.BEQ:
+	    return new Operation(decoded) {
+		    void run() {
+			branch(src1() == src2(),
+			       registers[regNextPC] + jumpOffset);
+		    }
+		};
+	case Mips.BNE:
+	    return new Operation(decoded) {
+		    void run() {
+			branch(src1() != src2(),
+			       registers[regNextPC] + jumpOffset);
+		    }
+		};
+	case Mips.BGEZ:
+	    return new Operation(decoded) {
+		    void run() {
+			branch(src1() >= 0, registers[regNextPC] + jumpOffset);
+		    }
+		};
+	case Mips.BGTZ:
+	    return new Operation(decoded) {
+		    void run() {
+			branch(src1() > 0, registers[regNextPC] + jumpOffset);
+		    }
+		};
+	case Mips.BLEZ:
+	    return new Operation(decoded) {
+		    void run() {
+			branch(src1() <= 0, registers[regNextPC] + jumpOffset);
+		    }
+		};
+	case Mips.BLTZ:
+	    return new Operation(decoded) {
+		    void run() {
+			branch(src1() < 0, registers[regNextPC] + jumpOffset);
+		    }
+		};
+	case Mips.SYSCALL:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			throw exception(exceptionSyscall);
+		    }
+		};
+	case Mips.LOAD:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+
+			if (!unsigned)
+			    value = Lib.extend(value, 0, size*8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+			advancePC(registers[regNextPC]+4);
+		    }
+		};
+	case Mips.LWL:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			loadWordLeft(dstReg, registers[rs] + imm);
+			advancePC(registers[regNextPC]+4);
+		    }
+		};
+	case Mips.LWR:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			loadWordRight(dstReg, registers[rs] + imm);
+			advancePC(registers[regNextPC]+4);
+		    }
+		};
+	case Mips.STORE:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			writeMem(registers[rs] + imm, size, (int) src2());
+			advance();
+		    }
+		};
+	case Mips.SWL:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			storeWordLeft(registers[rs] + imm, src2());
+			advance();
+		    }
+		};
+	case Mips.SWR:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			storeWordRight(registers[rs] + imm, src2());
+			advance();
+		    }
+		};
+	case Mips.UNIMPL:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			System.err.println("Warning: encountered unimplemented inst");
+			throw exception(exceptionIllegalInstruction);
+		    }
+		};
+	case Mips.INVALID:
+	    return new Operation(decoded) {
+		    void run() throws MipsException {
+			throw exception(exceptionIllegalInstruction);
+		    }
+		};
+	default:
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    /**
+     * The handler for one instruction in a basic block. A handler is built
+     * for a single decoded instruction word and specialized to its operation,
+     * so running it has the same effect as <tt>Instruction.run()</tt> on that
+     * word without decoding it or switching on its operation.
+     */
+    private abstract class Operation {
+	Operation(DecodedInstruction decoded) {
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    sh = decoded.sh;
+	    imm = decoded.imm;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
+	    jumpOffset = decoded.jumpOffset;
+
+	    src1Shift = Lib.test(Mips.SRC1SH, decoded.flags);
+	    src2Imm = Lib.test(Mips.SRC2IMM, decoded.flags);
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	    overflow = Lib.test(Mips.OVERFLOW, decoded.flags);
+	    link = Lib.test(Mips.LINK, decoded.flags);
+	}
+
+	/**
+	 * Execute the instruction.
+	 *
+	 * @exception	MipsException	if the instruction caused an exception.
+	 */
+	abstract void run() throws MipsException;
+
+	/** Return the first source operand, as computed by decode(). */
+	final long src1() {
+	    long src1 = src1Shift ? sh : registers[rs];
+	    return unsigned ? (src1 & 0xFFFFFFFFL) : src1;
+	}
+
+	/** Return the second source operand, as computed by decode(). */
+	final long src2() {
+	    long src2 = src2Imm ? imm : registers[rt];
+	    return unsigned ? (src2 & 0xFFFFFFFFL) : src2;
+	}
+
+	/**
+	 * Finish an instruction that writes <i>dst</i> to its destination
+	 * register, the same way writeBack() does.
+	 */
+	final void writeBack(long dst) throws MipsException {
+	    if (overflow && Lib.test(dst,31) != Lib.test(dst,32))
+		throw exception(exceptionOverflow);
+
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = (int) dst;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/** Finish an instruction that has no destination register. */
+	final void advance() {
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Finish a branch or jump, linking if necessary, and branching to
+	 * <i>jtarget</i> after the delay slot if <i>taken</i>.
+	 */
+	final void branch(boolean taken, int jtarget) {
+	    int nextPC = registers[regNextPC]+4;
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(taken ? jtarget : nextPC);
+	}
+
+	final int rs, rt, sh, imm, size, dstReg, jumpOffset;
+	final boolean src1Shift, src2Imm, unsigned, overflow, link;
+    }
+
+    /**
+     * The superclass of the classes that <tt>BlockTranslator</tt> generates
+     * for hot basic blocks. A translated block runs all of its instructions
+     * in a single call, working directly on the processor's registers, and
+     * uses the helpers here for everything else.
+     */
+    private abstract static class TranslatedBlock {
+	TranslatedBlock(Processor processor, BasicBlock block) {
+	    this.processor = processor;
+	    this.block = block;
+	}
+
+	/**
+	 * Run the block. The processor must not be in a delay slot.
+	 *
+	 * @param	registers	the processor's registers.
+	 * @param	pc		the virtual address of the block.
+	 * @param	target		scratch space for the branch target.
+	 * @return	the number of instructions executed, which is less than
+	 *		the length of the block if the block wrote to its own
+	 *		page.
+	 * @exception	MipsException	if an instruction caused an exception,
+	 *				in which case the PC registers hold the
+	 *				address of that instruction.
+	 */
+	abstract int run(int[] registers, int pc, int target)
+	    throws MipsException;
+
+	final boolean isValid() {
+	    return block.valid;
+	}
+
+	final void finishLoad() {
+	    processor.finishLoad();
+	}
+
+	final void delayedLoad(int nextLoadTarget, int nextLoadValue,
+			       int nextLoadMask) {
+	    processor.delayedLoad(nextLoadTarget, nextLoadValue, nextLoadMask);
+	}
+
+	final int readMem(int vaddr, int size) throws MipsException {
+	    return processor.readMem(vaddr, size);
+	}
+
+	final void writeMem(int vaddr, int size, int value)
+	    throws MipsException {
+	    processor.writeMem(vaddr, size, value);
+	}
+
+	final int checkOverflow(long dst) throws MipsException {
+	    if (Lib.test(dst,31) != Lib.test(dst,32))
+		raise(exceptionOverflow);
+
+	    return (int) dst;
+	}
+
+	final void multiply(long src1, long src2) {
+	    processor.multiply(src1, src2);
+	}
+
+	final void divide(long src1, long src2) throws MipsException {
+	    processor.divide(src1, src2);
+	}
+
+	final void loadWordLeft(int dstReg, int addr) throws MipsException {
+	    processor.loadWordLeft(dstReg, addr);
+	}
+
+	final void loadWordRight(int dstReg, int addr) throws MipsException {
+	    processor.loadWordRight(dstReg, addr);
+	}
+
+	final void storeWordLeft(int addr, long src2) throws MipsException {
+	    processor.storeWordLeft(addr, src2);
+	}
+
+	final void storeWordRight(int addr, long src2) throws MipsException {
+	    processor.storeWordRight(addr, src2);
+	}
+
+	final void raise(int cause) throws MipsException {
+	    throw processor.exception(cause);
+	}
+
+	final void unimplemented() throws MipsException {
+	    System.err.println("Warning: encountered unimplemented inst");
+	    raise(exceptionIllegalInstruction);
+	}
+
+	private final Processor processor;
+	private final BasicBlock block;
+    }
+
+    /**
+     * Generates the class file for a <tt>TranslatedBlock</tt> with the same
+     * effect as a basic block's handlers. Operands and jump targets that the
+     * handlers look up each time become constants, and the PC registers are
+     * only written where the rest of the processor can see them: before an
+     * instruction that may cause an exception, and when the block ends.
+     */
+    private static class BlockTranslator {
+	BlockTranslator(DecodedInstruction[] instructions) {
+	    this.instructions = instructions;
+	}
+
+	/**
+	 * Generate the class file.
+	 *
+	 * @return	the class file, or <tt>null</tt> if the block cannot be
+	 *		translated.
+	 */
+	byte[] translate() {
+	    int length = instructions.length;
+
+	    // a branch must be second to last, followed only by its delay slot
+	    for (int i=0; i<length; i++) {
+		if (Lib.test(Mips.BRANCH, instructions[i].flags) &&
+		    i != length-2)
+		    return null;
+	    }
+
+	    branching = length >= 2 &&
+		Lib.test(Mips.BRANCH, instructions[length-2].flags);
+
+	    for (int i=0; i<length; i++)
+		translate(i);
+
+	    if (branching) {
+		storeRegister(regPC);
+		asm.emit(ClassAssembler.ILOAD_3);
+		asm.emit(ClassAssembler.IASTORE);
+		storeRegister(regNextPC);
+		asm.emit(ClassAssembler.ILOAD_3);
+		pushOffset(4);
+		asm.emit(ClassAssembler.IASTORE);
+	    }
+	    else {
+		setPC(length*4, false);
+	    }
+
+	    asm.pushInt(length);
+	    asm.emit(ClassAssembler.IRETURN);
+
+	    // HotSpot will not compile methods larger than this
+	    if (asm.codeSize() > 8000)
+		return null;
+
+	    return asm.assemble(constructorDescriptor, "run", "([III)I",
+				maxStack, 4);
+	}
+
+	private void translate(int i) {
+	    DecodedInstruction inst = instructions[i];
+	    int offset = i*4;
+	    boolean delaySlot = branching && i == instructions.length-1;
+
+	    switch (inst.operation) {
+	    case Mips.ADD:
+	    case Mips.SUB:
+		if (Lib.test(Mips.OVERFLOW, inst.flags)) {
+		    setPC(offset, delaySlot);
+		    beginWrite(inst);
+		    asm.emit(ClassAssembler.ALOAD_0);
+		    pushSrc1Long(inst);
+		    pushSrc2Long(inst);
+		    asm.emit(inst.operation == Mips.ADD ?
+			     ClassAssembler.LADD : ClassAssembler.LSUB);
+		    callHelper("checkOverflow", "(J)I");
+		}
+		else {
+		    beginWrite(inst);
+		    pushSrc1Int(inst);
+		    pushSrc2Int(inst);
+		    asm.emit(inst.operation == Mips.ADD ?
+			     ClassAssembler.IADD : ClassAssembler.ISUB);
+		}
+		endWrite(inst);
+		break;
+	    case Mips.MULT:
+		asm.emit(ClassAssembler.ALOAD_0);
+		pushSrc1Long(inst);
+		pushSrc2Long(inst);
+		callHelper("multiply", "(JJ)V");
+		finishLoad();
+		break;
+	    case Mips.DIV:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		pushSrc1Long(inst);
+		pushSrc2Long(inst);
+		callHelper("divide", "(JJ)V");
+		finishLoad();
+		break;
+	    case Mips.SLL:
+	    case Mips.SRA:
+		beginWrite(inst);
+		pushSrc2Int(inst);
+		pushShiftAmount(inst);
+		asm.emit(inst.operation == Mips.SLL ?
+			 ClassAssembler.ISHL : ClassAssembler.ISHR);
+		endWrite(inst);
+		break;
+	    case Mips.SRL:
+		// the interpreter shifts the sign-extended operand
+		beginWrite(inst);
+		pushSrc2Long(inst);
+		pushShiftAmount(inst);
+		asm.emit(ClassAssembler.LUSHR);
+		asm.emit(ClassAssembler.L2I);
+		endWrite(inst);
+		break;
+	    case Mips.SLT:
+		// the sign of the 64-bit difference, which cannot overflow
+		beginWrite(inst);
+		pushSrc1Long(inst);
+		pushSrc2Long(inst);
+		asm.emit(ClassAssembler.LSUB);
+		asm.pushInt(63);
+		asm.emit(ClassAssembler.LUSHR);
+		asm.emit(ClassAssembler.L2I);
+		endWrite(inst);
+		break;
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.NOR:
+	    case Mips.XOR:
+		beginWrite(inst);
+		pushSrc1Int(inst);
+		pushSrc2Int(inst);
+		if (inst.operation == Mips.AND) {
+		    asm.emit(ClassAssembler.IAND);
+		}
+		else if (inst.operation == Mips.XOR) {
+		    asm.emit(ClassAssembler.IXOR);
+		}
+		else {
+		    asm.emit(ClassAssembler.IOR);
+		    if (inst.operation == Mips.NOR) {
+			asm.emit(ClassAssembler.ICONST_M1);
+			asm.emit(ClassAssembler.IXOR);
+		    }
+		}
+		endWrite(inst);
+		break;
+	    case Mips.LUI:
+		beginWrite(inst);
+		asm.pushInt(inst.imm << 16);
+		endWrite(inst);
+		break;
+	    case Mips.MFLO:
+	    case Mips.MFHI:
+		beginWrite(inst);
+		pushRegister(inst.operation == Mips.MFLO ? regLo : regHi);
+		endWrite(inst);
+		break;
+	    case Mips.MTLO:
+	    case Mips.MTHI:
+		storeRegister(inst.operation == Mips.MTLO ? regLo : regHi);
+		pushSrc1Int(inst);
+		asm.emit(ClassAssembler.IASTORE);
+		finishLoad();
+		break;
+	    case Mips.JUMP:
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		translateBranch(inst, offset);
+		break;
+	    case Mips.SYSCALL:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		asm.pushInt(exceptionSyscall);
+		callHelper("raise", "(I)V");
+		break;
+	    case Mips.LOAD:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		asm.pushInt(inst.dstReg);
+		asm.emit(ClassAssembler.ALOAD_0);
+		pushAddress(inst);
+		asm.pushInt(inst.size);
+		callHelper("readMem", "(II)I");
+		if (!Lib.test(Mips.UNSIGNED, inst.flags)) {
+		    asm.pushInt(0);
+		    asm.pushInt(inst.size*8);
+		    asm.invoke(ClassAssembler.INVOKESTATIC,
+			       "nachos/machine/Lib", "extend", "(III)I");
+		}
+		asm.emit(ClassAssembler.ICONST_M1);
+		callHelper("delayedLoad", "(III)V");
+		loadPending = (inst.dstReg != 0);
+		break;
+	    case Mips.LWL:
+	    case Mips.LWR:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		asm.pushInt(inst.dstReg);
+		pushAddress(inst);
+		callHelper(inst.operation == Mips.LWL ?
+			   "loadWordLeft" : "loadWordRight", "(II)V");
+		loadPending = (inst.dstReg != 0);
+		break;
+	    case Mips.STORE:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		pushAddress(inst);
+		asm.pushInt(inst.size);
+		pushSrc2Int(inst);
+		callHelper("writeMem", "(III)V");
+		finishLoad();
+		checkValid(i);
+		break;
+	    case Mips.SWL:
+	    case Mips.SWR:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		pushAddress(inst);
+		pushSrc2Long(inst);
+		callHelper(inst.operation == Mips.SWL ?
+			   "storeWordLeft" : "storeWordRight", "(IJ)V");
+		finishLoad();
+		checkValid(i);
+		break;
+	    case Mips.UNIMPL:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		callHelper("unimplemented", "()V");
+		break;
+	    case Mips.INVALID:
+		setPC(offset, delaySlot);
+		asm.emit(ClassAssembler.ALOAD_0);
+		asm.pushInt(exceptionIllegalInstruction);
+		callHelper("raise", "(I)V");
+		break;
+	    default:
+		Lib.assertNotReached();
+	    }
+	}
+
+	/**
+	 * Compute the address the block continues at into the
+	 * <tt>target</tt> argument, and link if necessary.
+	 */
+	private void translateBranch(DecodedInstruction inst, int offset) {
+	    if (inst.format == Mips.RFMT) {
+		pushRegister(inst.rs);
+	    }
+	    else if (inst.format == Mips.IFMT) {
+		asm.emit(ClassAssembler.ILOAD_2);
+		pushOffset(offset + 4 + inst.jumpOffset);
+	    }
+	    else {
+		asm.emit(ClassAssembler.ILOAD_2);
+		pushOffset(offset + 4);
+		asm.pushInt(0xF0000000);
+		asm.emit(ClassAssembler.IAND);
+		asm.pushInt(inst.jumpOffset);
+		asm.emit(ClassAssembler.IOR);
+	    }
+	    asm.emit(ClassAssembler.ISTORE_3);
+
+	    if (inst.operation != Mips.JUMP) {
+		int taken = asm.newLabel();
+
+		pushSrc1Int(inst);
+
+		switch (inst.operation) {
+		case Mips.BEQ:
+		    pushSrc2Int(inst);
+		    asm.branch(ClassAssembler.IF_ICMPEQ, taken);
+		    break;
+		case Mips.BNE:
+		    pushSrc2Int(inst);
+		    asm.branch(ClassAssembler.IF_ICMPNE, taken);
+		    break;
+		case Mips.BLEZ:
+		    asm.branch(ClassAssembler.IFLE, taken);
+		    break;
+		case Mips.BGTZ:
+		    asm.branch(ClassAssembler.IFGT, taken);
+		    break;
+		case Mips.BLTZ:
+		    asm.branch(ClassAssembler.IFLT, taken);
+		    break;
+		case Mips.BGEZ:
+		    asm.branch(ClassAssembler.IFGE, taken);
+		    break;
+		}
+
+		// not taken, so continue after the delay slot
+		asm.emit(ClassAssembler.ILOAD_2);
+		pushOffset(offset + 8);
+		asm.emit(ClassAssembler.ISTORE_3);
+
+		asm.mark(taken);
+	    }
+
+	    finishLoad();
+
+	    if (Lib.test(Mips.LINK, inst.flags) && inst.dstReg != 0) {
+		storeRegister(inst.dstReg);
+		asm.emit(ClassAssembler.ILOAD_2);
+		pushOffset(offset + 8);
+		asm.emit(ClassAssembler.IASTORE);
+	    }
+	}
+
+	/**
+	 * Leave the block if the store just made invalidated it, with the PC
+	 * at the next instruction.
+	 */
+	private void checkValid(int i) {
+	    if (i == instructions.length-1)
+		return;
+
+	    int valid = asm.newLabel();
+
+	    asm.emit(ClassAssembler.ALOAD_0);
+	    callHelper("isValid", "()Z");
+	    asm.branch(ClassAssembler.IFNE, valid);
+
+	    setPC((i+1)*4, false);
+	    asm.pushInt(i+1);
+	    asm.emit(ClassAssembler.IRETURN);
+
+	    asm.mark(valid);
+	}
+
+	/**
+	 * Set the PC registers as the interpreter would have them when
+	 * starting the instruction at <i>offset</i> in the block.
+	 */
+	private void setPC(int offset, boolean delaySlot) {
+	    storeRegister(regPC);
+	    asm.emit(ClassAssembler.ILOAD_2);
+	    pushOffset(offset);
+	    asm.emit(ClassAssembler.IASTORE);
+
+	    storeRegister(regNextPC);
+	    if (delaySlot) {
+		asm.emit(ClassAssembler.ILOAD_3);
+	    }
+	    else {
+		asm.emit(ClassAssembler.ILOAD_2);
+		pushOffset(offset + 4);
+	    }
+	    asm.emit(ClassAssembler.IASTORE);
+	}
+
+	/** Complete the delayed load in progress, if there may be one. */
+	private void finishLoad() {
+	    if (loadPending) {
+		asm.emit(ClassAssembler.ALOAD_0);
+		callHelper("finishLoad", "()V");
+		loadPending = false;
+	    }
+	}
+
+	/**
+	 * Start writing the destination register. The value to write must be
+	 * pushed before calling <tt>endWrite()</tt>.
+	 */
+	private void beginWrite(DecodedInstruction inst) {
+	    if (inst.dstReg != 0)
+		storeRegister(inst.dstReg);
+	}
+
+	/**
+	 * Finish the delayed load in progress and write the destination
+	 * register, in the same order as the handlers do.
+	 */
+	private void endWrite(DecodedInstruction inst) {
+	    if (inst.dstReg != 0) {
+		finishLoad();
+		asm.emit(ClassAssembler.IASTORE);
+	    }
+	    else {
+		asm.emit(ClassAssembler.POP);
+		finishLoad();
+	    }
+	}
+
+	/** Push the registers array and an index, to store to a register. */
+	private void storeRegister(int number) {
+	    asm.emit(ClassAssembler.ALOAD_1);
+	    asm.pushInt(number);
+	}
+
+	private void pushRegister(int number) {
+	    asm.emit(ClassAssembler.ALOAD_1);
+	    asm.pushInt(number);
+	    asm.emit(ClassAssembler.IALOAD);
+	}
+
+	/** Add a constant to the <tt>int</tt> on top of the stack. */
+	private void pushOffset(int offset) {
+	    if (offset != 0) {
+		asm.pushInt(offset);
+		asm.emit(ClassAssembler.IADD);
+	    }
+	}
+
+	private void pushAddress(DecodedInstruction inst) {
+	    pushRegister(inst.rs);
+	    pushOffset(inst.imm);
+	}
+
+	private void pushShiftAmount(DecodedInstruction inst) {
+	    pushSrc1Int(inst);
+	    asm.pushInt(0x1F);
+	    asm.emit(ClassAssembler.IAND);
+	}
+
+	/** Push the low 32 bits of the first source operand. */
+	private void pushSrc1Int(DecodedInstruction inst) {
+	    if (Lib.test(Mips.SRC1SH, inst.flags))
+		asm.pushInt(inst.sh);
+	    else
+		pushRegister(inst.rs);
+	}
+
+	/** Push the low 32 bits of the second source operand. */
+	private void pushSrc2Int(DecodedInstruction inst) {
+	    if (Lib.test(Mips.SRC2IMM, inst.flags))
+		asm.pushInt(inst.imm);
+	    else
+		pushRegister(inst.rt);
+	}
+
+	/** Push the first source operand, as computed by decode(). */
+	private void pushSrc1Long(DecodedInstruction inst) {
+	    if (Lib.test(Mips.SRC1SH, inst.flags)) {
+		asm.pushLong(inst.sh);
+	    }
+	    else {
+		pushRegister(inst.rs);
+		extendOperand(inst);
+	    }
+	}
+
+	/** Push the second source operand, as computed by decode(). */
+	private void pushSrc2Long(DecodedInstruction inst) {
+	    if (Lib.test(Mips.SRC2IMM, inst.flags)) {
+		if (Lib.test(Mips.UNSIGNED, inst.flags))
+		    asm.pushLong(inst.imm & 0xFFFFFFFFL);
+		else
+		    asm.pushLong(inst.imm);
+	    }
+	    else {
+		pushRegister(inst.rt);
+		extendOperand(inst);
+	    }
+	}
+
+	private void extendOperand(DecodedInstruction inst) {
+	    asm.emit(ClassAssembler.I2L);
+
+	    if (Lib.test(Mips.UNSIGNED, inst.flags)) {
+		asm.pushLong(0xFFFFFFFFL);
+		asm.emit(ClassAssembler.LAND);
+	    }
+	}
+
+	private void callHelper(String name, String descriptor) {
+	    asm.invoke(ClassAssembler.INVOKEVIRTUAL, superName, name,
+		       descriptor);
+	}
+
+	private DecodedInstruction[] instructions;
+	private boolean branching;
+	/**
+	 * <tt>false</tt> if no delayed load can be in progress at this point
+	 * in the block. Unknown, and so <tt>true</tt>, at the start.
+	 */
+	private boolean loadPending = true;
+
+	private ClassAssembler asm =
+	    new ClassAssembler("nachos/machine/Processor$Translation",
+			       superName);
+
+	private static final String superName =
+	    "nachos/machine/Processor$TranslatedBlock";
+	private static final String constructorDescriptor =
+	    "(Lnachos/machine/Processor;Lnachos/machine/Processor$BasicBlock;)V";
+	private static final int maxStack = 8;
+    }
+
+    /**
+     * The fields of an instruction that depend only on the instruction word,
+     * and not on the contents of any register. These are cached by physical
+     * address, so that a word that is executed repeatedly is only decoded
+     * once.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get the constant part of jtarget, using the sign-extended imm
+	    if (format == Mips.IFMT)
+		jumpOffset = imm<<2;
+	    else if (format == Mips.JFMT)
+		jumpOffset = target<<2;
+	    else
+		jumpOffset = 0;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	    this.imm = imm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, jumpOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
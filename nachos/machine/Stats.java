@@ -20,15 +20,32 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + ", idle " + idleTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numPageWalks > 0)
+	    System.out.println("Page walker: walks " + numPageWalks);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numTranslatedInstructions > 0)
+	    System.out.println("Translation: user instructions translated "
+			       + numTranslatedInstructions);
+	if (lockTicks > 0 || numIPIs > 0 || numTLBShootdowns > 0)
+	    System.out.println("Multiprocessor: kernel lock wait " + lockTicks
+			       + ", IPIs " + numIPIs
+			       + ", TLB shootdowns " + numTLBShootdowns);
+	if (numSteals > 0 || numMigrations > 0)
+	    System.out.println("Scheduling: steals " + numSteals
+			       + ", migrations " + numMigrations);
+	if (numRealTimeJobs > 0)
+	    System.out.println("Real time: jobs " + numRealTimeJobs
+			       + ", deadline misses " + numDeadlineMisses
+			       + ", overruns " + numBudgetOverruns);
     }
 
     /**
@@ -44,6 +61,18 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that Nachos has skipped while idle,
+     * waiting for the next interrupt with no thread ready to run.
+     */
+    public long idleTicks = 0;
+    /**
+     * The total amount of simulated time that the processors of a
+     * multiprocessor have spent waiting for the kernel lock. On a
+     * multiprocessor the kernel, user and idle ticks of all the processors
+     * add up to more than the total.
+     */
+    public long lockTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,10 +86,52 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The total number of TLB misses serviced by the processor walking the
+     * page table, which are not counted in <tt>numTLBMisses</tt>. A walk that
+     * finds no valid entry also counts as a page fault.
+     */
+    public long numPageWalks = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of user instructions run as translated code, out of
+     * the <tt>userTicks / UserTick</tt> executed in all.
+     */
+    public long numTranslatedInstructions = 0;
+    /**
+     * The number of inter-processor interrupts the kernel has sent.
+     */
+    public long numIPIs = 0;
+    /**
+     * The number of times a processor running user instructions was
+     * interrupted to invalidate the TLB entries for a page.
+     */
+    public long numTLBShootdowns = 0;
+    /**
+     * The number of times a CPU with no ready threads of its own took one
+     * from another CPU's run queue.
+     */
+    public long numSteals = 0;
+    /**
+     * The number of times a thread was run on a different CPU than it last
+     * ran on.
+     */
+    public long numMigrations = 0;
+    /**
+     * The total number of periodic real-time jobs the kernel has completed.
+     */
+    public long numRealTimeJobs = 0;
+    /**
+     * The number of those jobs that completed after their deadline.
+     */
+    public long numDeadlineMisses = 0;
+    /**
+     * The number of real-time jobs that ran for longer than their cost.
+     */
+    public long numBudgetOverruns = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,8 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -66,7 +67,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.get() < maxThreads);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -78,10 +79,10 @@ public final class TCB {
 	    Lib.assertTrue(currentTCB.javaThread == Thread.currentThread());
 
 	/* At this point all checks are complete, so we go ahead and start the
-	 * TCB. Whether or not this is the first TCB, it gets added to
+	 * TCB. Whether or not this is the first TCB, it gets counted in
 	 * runningThreads, and we save the target closure.
 	 */
-	runningThreads.add(this);
+	runningThreads.incrementAndGet();
 
 	this.target = target;
 
@@ -119,6 +120,30 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Causes the thread represented by this TCB to begin execution on another
+     * processor of a multiprocessor, as soon as that processor can take the
+     * kernel lock. The specified target is run in the thread. Unlike
+     * <tt>start(Runnable)</tt>, this does not switch to the new TCB: the
+     * current TCB keeps running on the current processor.
+     *
+     * @param	target	the code to run in the thread.
+     * @param	cpu	the number of the processor to run it on, which must
+     *			not have been started yet.
+     */
+    public void start(Runnable target, int cpu) {
+	Lib.assertTrue(currentTCB != null);
+	Lib.assertTrue(cpu != Machine.currentProcessor());
+
+	Machine.interrupt(cpu).prepareProcessor();
+	startCPU = cpu;
+
+	// this leaves the new thread waiting in yield()
+	start(target);
+
+	this.interrupt();
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -244,29 +269,36 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (runningThreads.decrementAndGet() == 0)
 		privilege.exit(0);
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (runningThreads.decrementAndGet() == 0)
 		privilege.exit(1);
 	    else
 		die();
 	}
     }
 
+    /**
+     * Make <i>tcb</i> the current TCB, when the processor it was running on
+     * takes the kernel lock back.
+     */
+    static void setCurrentTCB(TCB tcb) {
+	currentTCB = tcb;
+    }
+
     /**
      * Invoked by threadroot() and by contextSwitch() when it is necessary to
      * wait for another TCB to context switch to this TCB. Since this TCB
      * might get destroyed instead, we check the <tt>done</tt> flag after
      * waking up. If it is set, the TCB that woke us up is waiting for an
      * acknowledgement in destroy(). Otherwise, we just set the current TCB to
-     * this TCB and return.
+     * this TCB and return. A TCB started on another processor first waits
+     * for that processor to get the kernel lock.
      */
     private void yield() {
 	waitForInterrupt();
@@ -276,33 +308,44 @@ public final class TCB {
 	    throw new ThreadDeath();
 	}
 
+	if (startCPU >= 0) {
+	    int cpu = startCPU;
+	    startCPU = -1;
+	    Machine.interrupt(cpu).startProcessor(this);
+	}
+
 	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * <tt>park()</tt> may return spuriously, or because of an
+     * <tt>unpark()</tt> meant for an earlier handoff, so we keep checking the
+     * flag rather than trusting the wakeup.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong
+     * process of starting and destroying TCBs, as well as in context
+     * switching to this TCB. If the Java thread is not parked yet, the
+     * <tt>unpark()</tt> is remembered, and its next <tt>park()</tt> returns
+     * at once.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -330,7 +373,7 @@ public final class TCB {
      * The maximum number of started, non-destroyed TCB's that can be in
      * existence.
      */
-    public static final int maxThreads = 250;
+    public static final int maxThreads = 20000;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -338,7 +381,9 @@ public final class TCB {
      * invocation of <tt>start(Runnable)</tt> assigns <tt>currentTCB</tt> a
      * reference to the first TCB. After that, only <tt>yield()</tt> can
      * change <tt>currentTCB</tt> to the current TCB, and only after
-     * <tt>waitForInterrupt()</tt> returns.
+     * <tt>waitForInterrupt()</tt> returns; except that on a multiprocessor,
+     * <tt>currentTCB</tt> is the TCB running on the processor holding the
+     * kernel lock, and is switched with the lock.
      *
      * <p>
      * Note that <tt>currentTCB.javaThread</tt> will not be the current thread
@@ -348,18 +393,18 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
-     * added only in <tt>start(Runnable)</tt>, which can only be invoked once
-     * on each TCB object. TCB objects are removed only in each of the
-     * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
-     * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-     * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
-     * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * The number of <i>running</i> TCB objects. It is initialized to zero
+     * when the <tt>TCB</tt> class is loaded. It is incremented only in
+     * <tt>start(Runnable)</tt>, which can only be invoked once on each TCB
+     * object, and decremented only in each of the <tt>catch</tt> clauses of
+     * <tt>threadroot()</tt>, one of which is always invoked on thread
+     * termination. A doomed TCB decrements it after waking up its destroyer,
+     * so it must be atomic. <tt>runningThreads</tt> is limited to
+     * <tt>maxThreads</tt> by <tt>start(Runnable)</tt>. If
+     * <tt>threadroot()</tt> drops it to zero, Nachos exits, so once the first
+     * TCB is created, it is basically never zero.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static AtomicInteger runningThreads = new AtomicInteger();
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -381,14 +426,15 @@ public final class TCB {
 
     /**
      * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
+     * be running. This is an entirely different condition from being counted
+     * in <tt>runningThreads</tt>, which counts all TCB objects that have
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. It is volatile, since it is set by one Java thread
+     * to wake up another.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -396,6 +442,12 @@ public final class TCB {
      * will know that the current TCB is doomed.
      */
     private boolean done = false;
+
+    /**
+     * The processor this TCB is to start on, if it was started with
+     * <tt>start(Runnable, int)</tt>, or -1.
+     */
+    private int startCPU = -1;
     
     private KThread nachosThread = null;
     private boolean associated = false;
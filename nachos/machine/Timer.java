@@ -13,6 +13,15 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer also has a one-shot alarm, which interrupts once at a time set
+ * by the kernel, so that a kernel can wake sleeping threads when they are due
+ * rather than checking for them on every periodic interrupt.
+ *
+ * <p>
+ * On a multiprocessor each processor has its own timer, interrupting that
+ * processor. They all call the same handlers.
  */
 public final class Timer {
     /**
@@ -23,13 +32,35 @@ public final class Timer {
      */
     public Timer(Privilege privilege) {
 	System.out.print(" timer");
-	
+
 	this.privilege = privilege;
-	
+	interrupt = Machine.interrupt();
+	first = this;
+
+	createInterrupts();
+    }
+
+    /**
+     * Allocate the timer of another processor of a multiprocessor, sharing
+     * the handlers of the first processor's timer.
+     */
+    Timer(Privilege privilege, Interrupt interrupt, Timer first) {
+	this.privilege = privilege;
+	this.interrupt = interrupt;
+	this.first = first;
+
+	createInterrupts();
+    }
+
+    private void createInterrupts() {
 	timerInterrupt = new Runnable() {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -47,7 +78,42 @@ public final class Timer {
      * @param	handler		the timer interrupt handler.
      */
     public void setInterruptHandler(Runnable handler) {
-	this.handler = handler;
+	first.handler = handler;
+    }
+
+    /**
+     * Set the callback to use as the one-shot alarm's interrupt handler.
+     *
+     * @param	handler		the alarm interrupt handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	first.alarmHandler = handler;
+    }
+
+    /**
+     * Set the one-shot alarm to interrupt at <i>time</i>, replacing any time
+     * it was set to before. The alarm handler is called once, at the first
+     * tick at or after <i>time</i>.
+     *
+     * @param	time	when the alarm should interrupt.
+     */
+    public void setAlarm(long time) {
+	if (time == alarmTime)
+	    return;
+
+	alarmTime = time;
+
+	// an interrupt for an earlier setting finds it was replaced, and does
+	// nothing
+	interrupt.schedule(Math.max(time - getTime(), 1), "alarm",
+			   alarmInterrupt);
+    }
+
+    /**
+     * Stop the one-shot alarm from interrupting, if it is set.
+     */
+    public void cancelAlarm() {
+	alarmTime = noAlarm;
     }
 
     /**
@@ -65,25 +131,45 @@ public final class Timer {
 
 	lastTimerInterrupt = getTime();
 
-	if (handler != null)
-	    handler.run();
+	if (first.handler != null)
+	    first.handler.run();
+    }
+
+    private void alarmInterrupt() {
+	if (alarmTime > getTime())
+	    return;
+
+	alarmTime = noAlarm;
+
+	if (first.alarmHandler != null)
+	    first.alarmHandler.run();
     }
 
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	interrupt.schedule(delay, "timer", timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
-	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable alarmInterrupt;
+
+    /** When the one-shot alarm is set to interrupt, or <tt>noAlarm</tt>. */
+    private long alarmTime = noAlarm;
+    private static final long noAlarm = Long.MAX_VALUE;
 
     private Privilege privilege;
+    /** The interrupt controller of this timer's processor. */
+    private Interrupt interrupt;
+    /** The timer holding the handlers, that of the first processor. */
+    private Timer first;
     private Runnable handler = null;
+    private Runnable alarmHandler = null;
 }
@@ -73,15 +73,22 @@ public class NetKernel extends VMKernel {
 	    return;
 	}
 
-	postOffice.send(ping);
-
-	MailMessage ack = postOffice.receive(0);
+	MailMessage ack = postOffice.sendAndReceive(ping, 0, pingTimeout,
+						    pingAttempts);
 	
 	long endTime = Machine.timer().getTime();
 
-	System.out.println("time=" + (endTime-startTime) + " ticks");	
+	if (ack == null)
+	    System.out.println("no reply after " + pingAttempts + " attempts");
+	else
+	    System.out.println("time=" + (endTime-startTime) + " ticks");	
     }
 
+    /** The ticks to wait for a ping to be answered before sending again. */
+    private static final long pingTimeout = 100 * Stats.NetworkTime;
+    /** The most times to send a ping. */
+    private static final int pingAttempts = 5;
+
     private void pingServer() {
 	while (true) {
 	    MailMessage ping = postOffice.receive(1);
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.Collection;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -14,6 +16,14 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each queue holds at most <tt>PostOffice.mailboxCapacity</tt> messages (64
+ * by default). A message that arrives for a full queue is dropped, as the
+ * network might have dropped it, so that a burst of packets for a port that
+ * is not being read neither grows without limit nor holds up the other
+ * ports. Senders that need their messages delivered retransmit them, as
+ * <tt>sendAndReceive()</tt> does.
  */
 public class PostOffice {
     /**
@@ -21,14 +31,17 @@ public class PostOffice {
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
+    @SuppressWarnings("unchecked")
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList<MailMessage>(capacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -58,7 +71,7 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = queues[port].removeFirst();
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -66,6 +79,108 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Retrieve a message on the specified port, waiting at most <i>ticks</i>
+     * ticks for one to arrive.
+     *
+     * @param	port	the port on which to wait for a message.
+     * @param	ticks	the most ticks to wait for.
+     *
+     * @return	the message received, or <tt>null</tt> if none arrived in
+     *		time.
+     */
+    public MailMessage receive(int port, long ticks) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	Lib.debug(dbgNet, "waiting " + ticks + " ticks for mail on port "
+		  + port);
+
+	MailMessage mail = queues[port].poll(ticks);
+
+	if (Lib.test(dbgNet)) {
+	    if (mail != null)
+		System.out.println("got mail on port " + port + ": " + mail);
+	    else
+		System.out.println("timed out on port " + port);
+	}
+
+	return mail;
+    }
+
+    /**
+     * Send a message and wait for a reply on the specified port, sending the
+     * message again each time <i>timeout</i> ticks pass without one, since
+     * either the message or the reply may have been lost.
+     *
+     * @param	mail		the message to send.
+     * @param	replyPort	the port on which to wait for the reply.
+     * @param	timeout		the ticks to wait for a reply to each attempt.
+     * @param	maxAttempts	the most times to send the message.
+     *
+     * @return	the reply, or <tt>null</tt> if none arrived after
+     *		<i>maxAttempts</i> attempts.
+     */
+    public MailMessage sendAndReceive(MailMessage mail, int replyPort,
+				      long timeout, int maxAttempts) {
+	Lib.assertTrue(timeout > 0 && maxAttempts > 0);
+
+	for (int i=0; i<maxAttempts; i++) {
+	    send(mail);
+
+	    MailMessage reply = receive(replyPort, timeout);
+	    if (reply != null)
+		return reply;
+
+	    Lib.debug(dbgNet, "retransmitting mail: " + mail);
+	}
+
+	return null;
+    }
+
+    /**
+     * Retrieve up to <i>max</i> messages waiting on the specified port,
+     * without waiting for more to arrive.
+     *
+     * @param	port	the port whose messages to retrieve.
+     * @param	mail	the collection to add the messages to, in the order
+     *			they arrived.
+     * @param	max	the most messages to retrieve.
+     *
+     * @return	the number of messages retrieved.
+     */
+    public int receiveAll(int port, Collection<? super MailMessage> mail,
+			  int max) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return queues[port].drainTo(mail, max);
+    }
+
+    /**
+     * Return the most messages that have waited on the specified port at
+     * once.
+     *
+     * @param	port	the port.
+     * @return	the greatest length of its queue.
+     */
+    public int getHighWater(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return queues[port].getHighWater();
+    }
+
+    /**
+     * Return the number of messages for the specified port that were
+     * dropped because its queue was full.
+     *
+     * @param	port	the port.
+     * @return	the number of messages dropped.
+     */
+    public long getNumDropped(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return queues[port].getNumRejected();
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -89,7 +204,9 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!queues[mail.dstPort].offer(mail))
+		Lib.debug(dbgNet, "mailbox full, dropped mail to port "
+			  + mail.dstPort);
 	}
     }
 
@@ -125,7 +242,7 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private SynchList<MailMessage>[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
@@ -158,6 +158,30 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once. Has the same
+	 * effect on the statistics as calling <tt>tick(inKernelMode)</tt>
+	 * <i>count</i> times, but pending interrupts are only checked once, at
+	 * the end.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance.
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the number of user ticks that can pass before the next
+	 * pending interrupt is due. The processor can run that many
+	 * instructions and then credit them with a single call to
+	 * <tt>tick(false, count)</tt>, and interrupts will still occur after
+	 * the same instructions as if it had ticked after each one.
+	 *
+	 * @return	the number of user ticks, which is at least 1.
+	 */
+	public int userTicksUntilDue();
     }
 
     /**
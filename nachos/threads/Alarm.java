@@ -1,12 +1,26 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Queue;
-import java.util.concurrent.PriorityBlockingQueue;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a binary heap ordered by wake time, and the
+ * timer's one-shot alarm is set to the earliest wake time in the heap. So a
+ * thread is woken as soon as it is due, rather than at the next periodic
+ * timer interrupt, and going to sleep or being woken takes <i>O(log n)</i>
+ * time, however many threads are sleeping.
+ *
+ * <p>
+ * The same heap holds <i>timeouts</i>: handlers to be called from the alarm
+ * interrupt at a given time, unless cancelled first, and threads sleeping
+ * with a time limit on a wait queue, which is how synchronization primitives
+ * provide timed waits without a helper thread per waiter.
  */
 public class Alarm {
     /**
@@ -17,36 +31,56 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-        sleepingThreads = new PriorityBlockingQueue<SleepingThread>();
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() { timerInterrupt(); }
         });
+        Machine.timer().setAlarmHandler(new Runnable() {
+            public void run() { alarmInterrupt(); }
+        });
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * thread to yield if the scheduler says it has used up its quantum,
+     * forcing a context switch if there is another thread that should be run.
      */
     public void timerInterrupt() {
-        KThread.currentThread().yield();
-        for(int i = 0; i < sleepingThreads.size(); ++i){
-            SleepingThread s = sleepingThreads.peek();
-            if(Machine.timer().getTime() > s.wakeTime){
-                s.thread.ready();
-                sleepingThreads.poll();
-            }else{
-              // Priorty queue only has threads that do not need to be woken up.
-              break;
-            }
+        KThread thread = KThread.currentThread();
+        if (ThreadedKernel.scheduler.timerInterrupt(thread))
+            KThread.yield();
+    }
+
+    /**
+     * The one-shot alarm interrupt handler. Wakes every thread whose wake
+     * time has come, and sets the alarm for the next one. If the scheduler
+     * says a woken thread should preempt the current thread, the current
+     * thread then yields.
+     */
+    private void alarmInterrupt() {
+        long time = Machine.timer().getTime();
+        KThread current = KThread.currentThread();
+        boolean preempt = false;
+
+        while (size > 0 && heap[0].wakeTime <= time) {
+            Timeout t = heap[0];
+            remove(t);
+            if (t.expire() &&
+                ThreadedKernel.scheduler.preempts(t.thread, current))
+                preempt = true;
         }
+
+        if (size > 0)
+            Machine.timer().setAlarm(heap[0].wakeTime);
+
+        if (preempt)
+            KThread.yield();
     }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
-     * waking it up in the timer interrupt handler. The thread must be
-     * woken up (placed in the scheduler ready set) during the first timer
+     * waking it up in the alarm interrupt handler. The thread must be
+     * woken up (placed in the scheduler ready set) during the first alarm
      * interrupt where
      *
      * <p><blockquote>
@@ -60,31 +94,255 @@ public class Alarm {
     public void waitUntil(long x) {
         if (x <= 0) return;
 
-        sleepingThreads.add(new SleepingThread(KThread.currentThread(), Machine.timer().getTime() + x));
-        Machine.interrupt().disable();
+        waitUntilTime(Machine.timer().getTime() + x);
+    }
+
+    /**
+     * Put the current thread to sleep until the clock reaches
+     * <i>wakeTime</i>, waking it up as soon as it does. Unlike
+     * <tt>waitUntil()</tt>, the wake time does not depend on when this is
+     * called, so a periodic thread that sleeps until each of its period
+     * boundaries in turn does not drift.
+     *
+     * @param   wakeTime        the earliest time to wake up at.
+     */
+    public void waitUntilTime(long wakeTime) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (wakeTime > Machine.timer().getTime()) {
+            add(new Timeout(wakeTime, KThread.currentThread(), null, null));
+            KThread.sleep();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Call <i>handler</i> from the alarm interrupt handler once at least
+     * <i>ticks</i> ticks have passed, unless the returned timeout is
+     * cancelled first. The handler is called with interrupts disabled, and
+     * must not sleep.
+     *
+     * @param   ticks   the minimum number of clock ticks to wait.
+     * @param   handler the handler to call.
+     * @return  a timeout that can be cancelled.
+     */
+    public Timeout schedule(long ticks, Runnable handler) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        Timeout t = new Timeout(Machine.timer().getTime() + Math.max(ticks, 1),
+                                null, handler, null);
+        add(t);
+
+        Machine.interrupt().restore(intStatus);
+        return t;
+    }
+
+    /**
+     * Put the current thread to sleep until it is woken, or until at least
+     * <i>ticks</i> ticks have passed, whichever is first. Must be called with
+     * interrupts disabled, after the current thread has started waiting on
+     * some queue.
+     *
+     * <p>
+     * If the time passes first, <i>dequeue</i> is called from the alarm
+     * interrupt handler to take the thread off the queue it is waiting on. It
+     * returns <tt>false</tt> if the thread was not on the queue, because it
+     * has already been woken, in which case the thread counts as woken.
+     * Otherwise the thread has timed out, and is woken by the alarm. If the
+     * thread is woken first, its timeout is cancelled.
+     *
+     * @param   ticks   the most clock ticks to sleep for, more than 0.
+     * @param   dequeue takes the current thread off the queue it waits on.
+     * @return  <tt>true</tt> if the thread was woken, or <tt>false</tt> if
+     *          it timed out.
+     */
+    public boolean sleepFor(long ticks, BooleanSupplier dequeue) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(ticks > 0);
+
+        Timeout t = new Timeout(Machine.timer().getTime() + ticks,
+                                KThread.currentThread(), null, dequeue);
+        add(t);
+
         KThread.sleep();
-        Machine.interrupt().enable();
+
+        if (t.timedOut)
+            return false;
+
+        t.cancel();
+        return true;
+    }
+
+    /**
+     * Add a timeout to the heap, setting the alarm if it is now the first to
+     * expire.
+     */
+    private void add(Timeout s) {
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, size*2);
+
+        s.sequence = numSleeps++;
+        s.heapIndex = size;
+        heap[size++] = s;
+        siftUp(s.heapIndex);
+
+        if (heap[0] == s)
+            Machine.timer().setAlarm(s.wakeTime);
     }
 
-    private Queue<SleepingThread> sleepingThreads = null;
+    /**
+     * Remove a timeout from anywhere in the heap.
+     */
+    private void remove(Timeout s) {
+        int index = s.heapIndex;
+        Lib.assertTrue(heap[index] == s);
 
-    private class SleepingThread implements Comparable<SleepingThread> {
-        public KThread thread;
-        public long wakeTime;
+        Timeout last = heap[--size];
+        heap[size] = null;
+        s.heapIndex = -1;
 
-        public SleepingThread(KThread k, long t) {
-            thread = k;
-            wakeTime = t;
+        if (index < size) {
+            place(last, index);
+            siftUp(index);
+            siftDown(last.heapIndex);
         }
+    }
+
+    private void siftUp(int index) {
+        Timeout s = heap[index];
+
+        while (index > 0) {
+            int parent = (index-1) / 2;
+            if (!before(s, heap[parent]))
+                break;
+
+            place(heap[parent], index);
+            index = parent;
+        }
+
+        place(s, index);
+    }
+
+    private void siftDown(int index) {
+        Timeout s = heap[index];
+
+        while (true) {
+            int child = 2*index + 1;
+            if (child >= size)
+                break;
+
+            if (child+1 < size && before(heap[child+1], heap[child]))
+                child++;
+
+            if (!before(heap[child], s))
+                break;
+
+            place(heap[child], index);
+            index = child;
+        }
+
+        place(s, index);
+    }
+
+    private void place(Timeout s, int index) {
+        heap[index] = s;
+        s.heapIndex = index;
+    }
+
+    /**
+     * Timeouts expire in order of wake time, and timeouts with the same wake
+     * time in the order they were added.
+     */
+    private boolean before(Timeout a, Timeout b) {
+        if (a.wakeTime != b.wakeTime)
+            return a.wakeTime < b.wakeTime;
+        else
+            return a.sequence < b.sequence;
+    }
 
-        public int compareTo(SleepingThread other){
-            return (int)(this.wakeTime - other.wakeTime);
+    /** The timeouts that have not expired or been cancelled, in heap order. */
+    private Timeout[] heap = new Timeout[8];
+    private int size = 0;
+    /** The number of timeouts that have been added. */
+    private long numSleeps = 0;
+
+    /**
+     * A time at which the alarm interrupt handler wakes a sleeping thread or
+     * calls a handler, unless cancelled first.
+     */
+    public class Timeout {
+        private Timeout(long wakeTime, KThread thread, Runnable handler,
+                        BooleanSupplier dequeue) {
+            this.wakeTime = wakeTime;
+            this.thread = thread;
+            this.handler = handler;
+            this.dequeue = dequeue;
+        }
+
+        /**
+         * Stop this timeout from expiring, if it has not already. Takes
+         * <i>O(log n)</i> time, where <i>n</i> is the number of timeouts.
+         *
+         * @return  <tt>true</tt> if this timeout was cancelled, or
+         *          <tt>false</tt> if it had already expired or been
+         *          cancelled.
+         */
+        public boolean cancel() {
+            boolean intStatus = Machine.interrupt().disable();
+
+            boolean pending = (heapIndex >= 0);
+            if (pending)
+                remove(this);
+
+            Machine.interrupt().restore(intStatus);
+            return pending;
+        }
+
+        /**
+         * Return the time at which this timeout expires.
+         *
+         * @return  the wake time of this timeout.
+         */
+        public long getWakeTime() {
+            return wakeTime;
+        }
+
+        /**
+         * Called by the alarm interrupt handler, after removing this timeout
+         * from the heap.
+         *
+         * @return  <tt>true</tt> if a thread was woken.
+         */
+        private boolean expire() {
+            if (handler != null) {
+                handler.run();
+            }
+            else if (dequeue == null || dequeue.getAsBoolean()) {
+                timedOut = (dequeue != null);
+                thread.ready();
+                return true;
+            }
+
+            return false;
         }
 
         @Override
         public String toString(){
-            return "SleepingThread: [" + thread + ", " + wakeTime  + "]";
+            return "Timeout: [" + thread + ", " + wakeTime  + "]";
         }
+
+        private long wakeTime;
+        private KThread thread;
+        private Runnable handler;
+        private BooleanSupplier dequeue;
+        /** <tt>true</tt> if the thread was taken off its queue and woken. */
+        private boolean timedOut = false;
+
+        /** When this timeout was added, for FIFO order. */
+        long sequence;
+        /** The index of this timeout in the heap, or -1 if it is not. */
+        int heapIndex = -1;
     }
 
     private static class AlarmTestThread implements Runnable {
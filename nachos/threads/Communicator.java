@@ -3,11 +3,22 @@ package nachos.threads;
 import nachos.machine.*;
 
 /** 
- * A <i>communicator</i> allows threads to synchronously exchange 32-bit
- * messages. Multiple threads can be waiting to <i>speak</i>,
- * and multiple threads can be waiting to <i>listen</i>. But there should never
- * be a time when both a speaker and a listener are waiting, because the two
- * threads can be paired off at this point.
+ * A <i>communicator</i> allows threads to exchange 32-bit messages.
+ *
+ * <p>
+ * By default, the exchange is synchronous. Multiple threads can be waiting
+ * to <i>speak</i>, and multiple threads can be waiting to <i>listen</i>. But
+ * there should never be a time when both a speaker and a listener are
+ * waiting, because the two threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator can instead be given a capacity, in which case the exchange
+ * is asynchronous: it is a bounded buffer of that many words, speakers only
+ * wait while it is full, and listeners only while it is empty. A speaker
+ * then returns as soon as its word is buffered, before any thread has heard
+ * it. Words are heard in the order they were buffered. The batch forms of
+ * <tt>speak()</tt> and <tt>listen()</tt> move as many words as fit each time
+ * they hold the lock. A capacity of 0 is the rendezvous described above.
  */
 public class Communicator {
     private int message;    //our message for the communicator
@@ -19,13 +30,42 @@ public class Communicator {
     int speakerActive = 0;  //Variable for how many speakers active
     int listenerActive = 0; //Variable for how many listeners active
     boolean messageActive = false; //Our Boolean to see if theres a message active
+
+    private int[] buffer;   //the buffered words, if there is a capacity
+    private int first = 0;  //index of the oldest buffered word
+    private int count = 0;  //number of buffered words
+
     /**
      * Allocate a new communicator.
      */
     public Communicator() {
+        this(0);
+    }
+
+    /**
+     * Allocate a new communicator that buffers up to <i>capacity</i> words.
+     *
+     * @param   capacity    the most words that can be spoken but not yet
+     *                      heard, or 0 for a rendezvous.
+     */
+    public Communicator(int capacity) {
+        Lib.assertTrue(capacity >= 0);
+
         ourLock = new Lock();
         toSpeak = new Condition2(ourLock);
         toListen = new Condition2(ourLock);
+
+        if (capacity > 0)
+            buffer = new int[capacity];
+    }
+
+    /**
+     * Return the number of words this communicator buffers.
+     *
+     * @return  its capacity, or 0 if it is a rendezvous.
+     */
+    public int getCapacity() {
+        return (buffer == null) ? 0 : buffer.length;
     }
 
     /**
@@ -33,12 +73,28 @@ public class Communicator {
      * <i>word</i> to the listener.
      *
      * <p>
-     * Does not return until this thread is paired up with a listening thread.
-     * Exactly one listener should receive <i>word</i>.
+     * Without a capacity, does not return until this thread is paired up
+     * with a listening thread. With a capacity, only waits until there is
+     * room in the buffer, and returns once <i>word</i> is buffered, whether
+     * or not a thread is listening yet. Either way, exactly one listener
+     * should receive <i>word</i>.
      *
      * @param   word    the integer to transfer.
      */
     public void speak(int word) {
+        if (buffer != null) {
+            ourLock.acquire();
+            while (count == buffer.length)
+                toSpeak.sleep();    //wait for room in the buffer
+
+            buffer[(first + count) % buffer.length] = word;
+            count++;
+
+            toListen.wake();
+            ourLock.release();
+            return;
+        }
+
         ourLock.acquire();  
         speakerWaiting++;
         while(listenerWaiting==0||speakerActive > 0 || listenerActive > 0 || messageActive){
@@ -59,11 +115,26 @@ public class Communicator {
 
     /**
      * Wait for a thread to speak through this communicator, and then return
-     * the <i>word</i> that thread passed to <tt>speak()</tt>.
+     * the <i>word</i> that thread passed to <tt>speak()</tt>. With a
+     * capacity, returns the oldest buffered word at once if there is one.
      *
      * @return  the integer transferred.
      */    
     public int listen() {
+        if (buffer != null) {
+            ourLock.acquire();
+            while (count == 0)
+                toListen.sleep();   //wait for a word
+
+            int word = buffer[first];
+            first = (first + 1) % buffer.length;
+            count--;
+
+            toSpeak.wake();
+            ourLock.release();
+            return word;
+        }
+
         ourLock.acquire();  //acquire lock
         listenerWaiting++;  //increment waiting listenesr
         if(speakerWaiting > 0 && listenerActive < 1 && speakerActive < 1 ){//wake up a speaker if there is one and thers no active listeners or speakers
@@ -89,6 +160,82 @@ public class Communicator {
         return returnMessage;       //return the message
 
     }
+    /**
+     * Transfer all of <i>words</i>, in order, waiting whenever the buffer is
+     * full. Each time the lock is held, as many words are copied as there is
+     * room for, so the words of two speakers speaking at once may be
+     * interleaved. Without a buffer, each word is spoken in turn.
+     *
+     * @param   words   the integers to transfer.
+     */
+    public void speak(int[] words) {
+        if (buffer == null) {
+            for (int i=0; i<words.length; i++)
+                speak(words[i]);
+            return;
+        }
+
+        ourLock.acquire();
+
+        int done = 0;
+        while (done < words.length) {
+            while (count == buffer.length)
+                toSpeak.sleep();
+
+            int n = Math.min(words.length - done, buffer.length - count);
+            int last = (first + count) % buffer.length;
+
+            // copy up to the end of the buffer, then wrap around
+            int part = Math.min(n, buffer.length - last);
+            System.arraycopy(words, done, buffer, last, part);
+            System.arraycopy(words, done + part, buffer, 0, n - part);
+
+            count += n;
+            done += n;
+
+            toListen.wakeAll();
+        }
+
+        ourLock.release();
+    }
+
+    /**
+     * Wait for at least one word to be spoken, and then receive as many as
+     * are buffered, up to the length of <i>into</i>. Without a buffer, one
+     * word is received.
+     *
+     * @param   into    where to store the integers transferred.
+     * @return  the number of integers stored in <i>into</i>.
+     */
+    public int listen(int[] into) {
+        Lib.assertTrue(into.length > 0);
+
+        if (buffer == null) {
+            into[0] = listen();
+            return 1;
+        }
+
+        ourLock.acquire();
+
+        while (count == 0)
+            toListen.sleep();
+
+        int n = Math.min(into.length, count);
+
+        // copy up to the end of the buffer, then wrap around
+        int part = Math.min(n, buffer.length - first);
+        System.arraycopy(buffer, first, into, 0, part);
+        System.arraycopy(buffer, 0, into, part, n - part);
+
+        first = (first + n) % buffer.length;
+        count -= n;
+
+        toSpeak.wakeAll();
+        ourLock.release();
+
+        return n;
+    }
+
     private static class testSpeaker implements Runnable{ //
         private Communicator ourCom;
         private int message;
@@ -175,6 +322,22 @@ public class Communicator {
         t10.join();//queueing the listener #2
         t11.join();//queueing the speaker #1
         t12.join();//queueing the speaker #2
-        Lib.debug('u',"\nTest 4 end\n-----------------------------------------Communicator selfTest end--------------------------------------");
+        Lib.debug('u',"\nTest 4 end\n----Test 5: A Communicator with capacity 4, and a Speaker with messages 0 to 9----");
+        final Communicator buffered = new Communicator(4);
+        KThread t13 = new KThread(new Runnable() {
+            public void run() {
+                buffered.speak(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+            }
+        });
+        t13.setName("SpeakerThread7");
+        t13.fork();
+        int[] heard = new int[3];
+        for (int i=0; i<10; ) {
+            int n = buffered.listen(heard);
+            for (int j=0; j<n; j++, i++)
+                Lib.assertTrue(heard[j] == i);
+        }
+        t13.join();
+        Lib.debug('u',"\nTest 5 end\n-----------------------------------------Communicator selfTest end--------------------------------------");
     }
 }
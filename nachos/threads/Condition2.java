@@ -1,9 +1,8 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Queue;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
 
 /**
  * An implementation of condition variables that disables interrupt()s for
@@ -28,9 +27,7 @@ public class Condition2 {
 	
     }
 	
-    private LinkedBlockingQueue<KThread> waitQueue2 = new LinkedBlockingQueue<KThread>();
-   // private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-	private boolean isEmpty = true;
+    private WaitList waitList = new WaitList();
     private Lock conditionLock;
     public static boolean supressDebug = true;  
     
@@ -105,12 +102,10 @@ public class Condition2 {
         if(supressDebug == false)
             Lib.debug('e', KThread.currentThread().getName() + " is sleeping now!");
     
-       // waitQueue.waitForAccess(KThread.currentThread());
-		waitQueue2.offer(KThread.currentThread());
-        isEmpty = false;
+        waitList.add(KThread.currentThread());
         if(supressDebug == false){
             Lib.debug('e', "\n Current Sleeping threads: \n" );
-			Lib.debug('e', waitQueue2.toString());
+            Lib.debug('e', waitList.toString());
 				
             Lib.debug('e', "\n" );
         }
@@ -123,6 +118,42 @@ public class Condition2 {
     
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but wake up on its own after at most
+     * <i>ticks</i> ticks. A thread that times out is taken off the wait
+     * queue, so a later <tt>wake()</tt> goes to another thread. Either way,
+     * the thread reacquires the lock before <tt>sleepFor()</tt> returns.
+     *
+     * @param   ticks   the most ticks to sleep for.
+     * @return  <tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *          <tt>wakeAll()</tt>, or <tt>false</tt> if it timed out.
+     */
+    public boolean sleepFor(long ticks) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        if (ticks <= 0)
+            return false;
+
+        boolean iStat = Machine.interrupt().disable();
+
+        conditionLock.release();
+
+        final KThread thread = KThread.currentThread();
+        waitList.add(thread);
+
+        boolean woken = ThreadedKernel.alarm.sleepFor(ticks,
+            new BooleanSupplier() {
+                public boolean getAsBoolean() {
+                    return waitList.remove(thread);
+                }
+            });
+
+        conditionLock.acquire();
+
+        Machine.interrupt().restore(iStat);
+        return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -133,21 +164,17 @@ public class Condition2 {
                 Lib.assertTrue(conditionLock.isHeldByCurrentThread());
                 boolean iStat = Machine.interrupt().disable();
                 
-                //KThread kthread = waitQueue.nextThread();
-                KThread kthread = waitQueue2.poll();
+                KThread kthread = waitList.removeFirst();
                 if(kthread !=null ){
                    
                     if(supressDebug == false){
                         Lib.debug('e',KThread.currentThread().getName() + " is awoken now! \n");
                         Lib.debug('e', "Threads still on queue: \n" );
-						Lib.debug('e', waitQueue2.toString());
+                        Lib.debug('e', waitList.toString());
                         Lib.debug('e', "\n" );
                     }
                     kthread.ready();
                 }
-				else{
-					isEmpty = true;
-				}
                 Machine.interrupt().restore(iStat);
                 
     }
@@ -155,18 +182,19 @@ public class Condition2 {
     
     /**
      * Wake up all threads sleeping on this condition variable. The current
-     * thread must hold the associated lock. Uses Wake() function as many times as
-     * there are threads on the queue.
+     * thread must hold the associated lock. The whole wait list is detached
+     * at once, and then each of its threads is readied in order.
      */
      
     public void wakeAll() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         boolean iStat = Machine.interrupt().disable();
-         
-			wake();
-            
-        while(!isEmpty){
-            wake();
+
+        KThread kthread = waitList.detachAll();
+        while (kthread != null) {
+            KThread next = WaitList.next(kthread);
+            kthread.ready();
+            kthread = next;
         }
 
         Machine.interrupt().restore(iStat);
@@ -0,0 +1,445 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that always chooses the thread with the earliest deadline.
+ *
+ * <p>
+ * A real-time thread is admitted with a period, a relative deadline, and a
+ * cost, which is the most ticks it runs for in each period. It runs as a
+ * sequence of <i>jobs</i>: the first is released when the thread is admitted,
+ * and each job ends with a call to <tt>waitForNextPeriod()</tt>, which sleeps
+ * on the alarm until the next job is released, one period after the last.
+ * Release times are computed from the first, not from when a job ends, so
+ * they do not drift. Each job must finish within its relative deadline of
+ * being released; a job that finishes later is counted as a deadline miss,
+ * both for its thread and in <tt>Stats</tt>.
+ *
+ * <p>
+ * A thread is only admitted if the total density of the real-time threads,
+ * the sum of their costs over their relative deadlines, stays within
+ * <tt>utilizationBound</tt>. As long as each job runs for no more than its
+ * cost, no deadline is then missed, apart from the lateness of the alarm
+ * that releases each job. The cost is a budget: a job that has run for
+ * longer is counted as an overrun and demoted to the background, with no
+ * deadline, until its thread's next job is released, so that it cannot make
+ * other threads miss their deadlines. The budget is checked whenever the
+ * thread stops running and on every timer interrupt, so a job may overrun
+ * by up to one timer interval before it is demoted. A thread that finishes
+ * is withdrawn, giving its share back.
+ *
+ * <p>
+ * Threads that are not real-time have no deadline, and only run when no
+ * real-time job is ready, in FIFO order. This scheduler does not transfer
+ * priority. Threads are preempted on every timer interrupt, at which point
+ * the earliest deadline runs next, and when the alarm releases a job with an
+ * earlier deadline than the running thread's.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new earliest deadline first scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new earliest deadline first thread queue.
+     *
+     * @param	transferPriority	ignored, since this scheduler does not
+     *					transfer priority.
+     * @return	a new earliest deadline first thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new EDFQueue();
+    }
+
+    /**
+     * Make a thread real-time, if the real-time threads can still meet their
+     * deadlines. If the thread is already real-time, its old parameters are
+     * replaced. Either way, its first job is released now. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread		the thread to admit.
+     * @param	period		the number of ticks between job releases.
+     * @param	deadline	the number of ticks after its release by
+     *				which each job must finish, at most
+     *				<i>period</i>.
+     * @param	cost		the most ticks each job runs for, at most
+     *				<i>deadline</i>.
+     * @return	<tt>true</tt> if the thread was admitted, or <tt>false</tt>
+     *		if it would make the total density exceed
+     *		<tt>utilizationBound</tt>.
+     */
+    public boolean admit(KThread thread, long period, long deadline,
+			 long cost) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(cost > 0 && cost <= deadline && deadline <= period);
+
+	ThreadState state = getThreadState(thread);
+
+	double density = (double) cost / deadline;
+	if (utilization - state.density() + density > utilizationBound)
+	    return false;
+
+	utilization += density - state.density();
+
+	state.period = period;
+	state.relativeDeadline = deadline;
+	state.cost = cost;
+
+	state.release = Machine.timer().getTime();
+	state.startJob();
+
+	return true;
+    }
+
+    /**
+     * Make a real-time thread an ordinary thread again, freeing its share of
+     * the processor for other real-time threads. This is done for a thread
+     * when it finishes. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to withdraw.
+     */
+    public void withdraw(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+
+	utilization -= state.density();
+
+	state.period = 0;
+	state.setDeadline(noDeadline);
+    }
+
+    /**
+     * End the current job of the current thread, which must be real-time,
+     * and sleep until the next job is released.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	Lib.assertTrue(state.period > 0);
+
+	Stats stats = Machine.stats();
+
+	state.numJobs++;
+	stats.numRealTimeJobs++;
+
+	if (Machine.timer().getTime() > state.jobDeadline) {
+	    state.numMisses++;
+	    stats.numDeadlineMisses++;
+	}
+
+	state.release += state.period;
+	state.startJob();
+
+	long release = state.release;
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntilTime(release);
+    }
+
+    /**
+     * Return the number of jobs a thread has finished after their deadline,
+     * since it was created.
+     *
+     * @param	thread	the thread.
+     * @return	the number of deadlines the thread has missed.
+     */
+    public long getDeadlineMisses(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).numMisses;
+    }
+
+    /**
+     * Return the number of jobs a thread has run for longer than their cost,
+     * since it was created.
+     *
+     * @param	thread	the thread.
+     * @return	the number of times the thread has overrun its budget.
+     */
+    public long getOverruns(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).numOverruns;
+    }
+
+    /**
+     * Return the number of jobs a thread has finished, since it was created.
+     *
+     * @param	thread	the thread.
+     * @return	the number of jobs the thread has finished.
+     */
+    public long getJobs(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).numJobs;
+    }
+
+    /**
+     * Return the total density of the admitted real-time threads.
+     *
+     * @return	the sum of their costs over their relative deadlines.
+     */
+    public double getUtilization() {
+	return utilization;
+    }
+
+    public void restoreState(KThread thread) {
+	getThreadState(thread).runStart = Machine.timer().getTime();
+    }
+
+    public void saveState(KThread thread) {
+	getThreadState(thread).charge();
+    }
+
+    /**
+     * Charge the running thread for the time it has run, demoting it if its
+     * job has overrun its budget, and preempt it.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	getThreadState(thread).charge();
+	return true;
+    }
+
+    /**
+     * A thread that is woken preempts the running thread if it has an
+     * earlier deadline.
+     */
+    public boolean preempts(KThread thread, KThread current) {
+	return getThreadState(thread).deadline <
+	    getThreadState(current).deadline;
+    }
+
+    /**
+     * Withdraw a real-time thread that is finishing.
+     */
+    public void finish(KThread thread) {
+	if (getThreadState(thread).period > 0)
+	    withdraw(thread);
+    }
+
+    /**
+     * The most that the total density of the real-time threads may be. With
+     * preemption, earliest deadline first can meet every deadline up to 1.
+     */
+    public static final double utilizationBound = 1.0;
+
+    /**
+     * The deadline of a thread that is not real-time.
+     */
+    public static final long noDeadline = Long.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Orders threads by absolute deadline, and threads with the same
+     * deadline by how long they have been waiting.
+     */
+    private static final Comparator<ThreadState> byDeadline =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.deadline != b.deadline)
+		    return (a.deadline < b.deadline) ? -1 : 1;
+		else
+		    return Long.compare(a.waitTime, b.waitTime);
+	    }
+	};
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the waiting thread with the
+     * earliest deadline. The waiting threads are kept in a red-black tree.
+     */
+    protected class EDFQueue extends ThreadQueue {
+	EDFQueue() {
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitQueue == null);
+
+	    state.waitTime = numWaits++;
+	    state.waitQueue = this;
+	    threads.add(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(threads.isEmpty());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState next = threads.pollFirst();
+	    if (next == null)
+		return null;
+
+	    next.waitQueue = null;
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    threads.remove(state);
+	    state.waitQueue = null;
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : threads) {
+		System.out.print(" " + state.thread);
+		if (state.deadline != noDeadline)
+		    System.out.print(" (deadline " + state.deadline + ")");
+	    }
+	    System.out.println();
+	}
+
+	/** The waiting threads, ordered by deadline. */
+	TreeSet<ThreadState> threads = new TreeSet<ThreadState>(byDeadline);
+	/** The number of threads that have waited on this queue. */
+	long numWaits = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under an earliest deadline first
+     * scheduler.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Change the absolute deadline of the associated thread, moving it
+	 * within the queue it is waiting on, if any.
+	 *
+	 * @param	deadline	the new deadline.
+	 */
+	void setDeadline(long deadline) {
+	    // the key of a thread in a tree must not change
+	    if (waitQueue != null)
+		waitQueue.threads.remove(this);
+
+	    this.deadline = deadline;
+
+	    if (waitQueue != null)
+		waitQueue.threads.add(this);
+	}
+
+	/**
+	 * Release the current job of the associated thread, at
+	 * <tt>release</tt>, with a fresh budget.
+	 */
+	void startJob() {
+	    jobDeadline = release + relativeDeadline;
+	    used = 0;
+	    runStart = Machine.timer().getTime();
+	    setDeadline(jobDeadline);
+	}
+
+	/**
+	 * Add the time the associated thread has run since it was last charged
+	 * to its current job, and demote the job to the background if that
+	 * is more than its cost.
+	 */
+	void charge() {
+	    long time = Machine.timer().getTime();
+	    used += time - runStart;
+	    runStart = time;
+
+	    if (period > 0 && used > cost && deadline != noDeadline) {
+		numOverruns++;
+		Machine.stats().numBudgetOverruns++;
+		setDeadline(noDeadline);
+	    }
+	}
+
+	/**
+	 * Return the share of the processor the associated thread needs to
+	 * meet its deadlines.
+	 *
+	 * @return	its cost over its relative deadline, or 0 if it is not
+	 *		real-time.
+	 */
+	double density() {
+	    return (period > 0) ? (double) cost / relativeDeadline : 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+
+	/** The period of the associated thread, or 0 if it is not real-time. */
+	protected long period = 0;
+	/** The relative deadline of each job of the associated thread. */
+	protected long relativeDeadline;
+	/** The most ticks each job of the associated thread runs for. */
+	protected long cost;
+
+	/** When the current job of the associated thread was released. */
+	protected long release;
+	/** The absolute deadline of the current job. */
+	protected long jobDeadline;
+	/**
+	 * The deadline the associated thread is scheduled by: that of its
+	 * current job, or <tt>noDeadline</tt> if it is not real-time or the
+	 * job has overrun its budget.
+	 */
+	protected long deadline = noDeadline;
+
+	/** How long the current job has run for. */
+	protected long used = 0;
+	/** When the associated thread was last charged for running. */
+	long runStart;
+
+	/** The number of jobs the associated thread has finished. */
+	protected long numJobs = 0;
+	/** The number of those jobs that finished after their deadline. */
+	protected long numMisses = 0;
+	/** The number of jobs that ran for longer than their cost. */
+	protected long numOverruns = 0;
+
+	/** The queue the associated thread is waiting on, if any. */
+	EDFQueue waitQueue = null;
+	/** When the associated thread started waiting, for FIFO order. */
+	long waitTime;
+    }
+
+    private double utilization = 0;
+}
@@ -0,0 +1,322 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor fairly, by choosing the thread that
+ * has run the least.
+ *
+ * <p>
+ * A fair scheduler charges each thread for the ticks it spends running,
+ * between <tt>KThread.restoreState()</tt> and <tt>KThread.saveState()</tt>,
+ * divided by its priority. The total charged is the thread's <i>virtual
+ * runtime</i>, and the next thread to be dequeued is always the one with the
+ * lowest virtual runtime. A thread with priority <i>n</i> is therefore given
+ * <i>n</i> times as much of the processor as a thread with priority 1.
+ *
+ * <p>
+ * A thread that was blocked has not been charged for the time it spent
+ * blocked, so when it starts waiting on a queue again, its virtual runtime
+ * is raised to at least the lowest virtual runtime chosen from that queue,
+ * less a small credit. A thread that wakes up from a long
+ * <tt>Alarm.waitUntil()</tt> or <tt>Condition2.sleep()</tt> therefore runs
+ * soon, but cannot then keep the processor until it catches up. New threads
+ * are placed the same way.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a balanced tree ordered by virtual
+ * runtime, so that adding and choosing a thread take <i>O(log n)</i> time.
+ * This scheduler does not transfer priority.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored, since this scheduler does not
+     *					transfer priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+
+	// time already run is charged at the old priority
+	state.charge();
+	state.priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public void restoreState(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	state.running = true;
+	state.runStart = Machine.timer().getTime();
+    }
+
+    public void saveState(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	state.charge();
+	state.running = false;
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = 1024;
+
+    /**
+     * The virtual runtime charged per tick to a thread with priority 1. A
+     * thread with priority <i>n</i> is charged <tt>runtimeScale / n</tt> per
+     * tick.
+     */
+    public static final long runtimeScale = 1L << 20;
+
+    /**
+     * How far below the lowest virtual runtime of a queue a thread that was
+     * blocked may be placed: half a timer interrupt's worth of running, at
+     * priority 1.
+     */
+    public static final long sleeperCredit =
+	Stats.TimerTicks/2 * runtimeScale;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Orders threads by virtual runtime, and threads with the same virtual
+     * runtime by how long they have been waiting.
+     */
+    private static final Comparator<ThreadState> byRuntime =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.vruntime != b.vruntime)
+		    return (a.vruntime < b.vruntime) ? -1 : 1;
+		else
+		    return Long.compare(a.waitTime, b.waitTime);
+	    }
+	};
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the waiting thread with the lowest
+     * virtual runtime. The waiting threads are kept in a red-black tree.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue() {
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(threads.isEmpty());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState next = threads.pollFirst();
+	    if (next == null)
+		return null;
+
+	    next.waitQueue = null;
+	    minRuntime = Math.max(minRuntime, next.vruntime);
+
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    threads.remove(state);
+	    state.waitQueue = null;
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : threads) {
+		System.out.print(" " + state.thread + " (vruntime "
+				 + state.vruntime + ")");
+	    }
+	    System.out.println();
+	}
+
+	/** The waiting threads, ordered by virtual runtime. */
+	TreeSet<ThreadState> threads = new TreeSet<ThreadState>(byRuntime);
+	/** The number of threads that have waited on this queue. */
+	long numWaits = 0;
+	/** The highest virtual runtime of any thread chosen from this queue. */
+	long minRuntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a fair scheduler.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on a queue. If it
+	 * is running, it is first charged for the time it has run; otherwise
+	 * it was blocked, and is placed no further behind the queue's lowest
+	 * virtual runtime than <tt>sleeperCredit</tt>.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(FairQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    if (running)
+		charge();
+	    else
+		vruntime = Math.max(vruntime,
+				    waitQueue.minRuntime - sleeperCredit);
+
+	    waitTime = waitQueue.numWaits++;
+	    this.waitQueue = waitQueue;
+	    waitQueue.threads.add(this);
+	}
+
+	/**
+	 * If the associated thread is running, charge it for the ticks it
+	 * has run since it was last charged.
+	 */
+	void charge() {
+	    if (!running)
+		return;
+
+	    long time = Machine.timer().getTime();
+	    long ticks = time - runStart;
+	    runStart = time;
+
+	    if (ticks == 0)
+		return;
+
+	    // the key of a thread in a tree must not change
+	    if (waitQueue != null)
+		waitQueue.threads.remove(this);
+
+	    vruntime += ticks * (runtimeScale / priority);
+
+	    if (waitQueue != null)
+		waitQueue.threads.add(this);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+
+	/** <tt>true</tt> if the associated thread is running. */
+	boolean running = false;
+	/** When the associated thread was last charged, if it is running. */
+	long runStart;
+
+	/** The queue the associated thread is waiting on, if any. */
+	FairQueue waitQueue = null;
+	/** When the associated thread started waiting, for FIFO order. */
+	long waitTime;
+    }
+}
@@ -28,6 +28,11 @@ import java.util.Iterator;
  * PiRun p = new PiRun();
  * new KThread(p).fork();
  * </pre></blockquote>
+ *
+ * <p>
+ * On a multiprocessor, each processor has its own current thread and its own
+ * idle thread, and takes threads from the one ready queue. A thread may run
+ * on a different processor each time it is dispatched.
  */
 public class KThread {
     /**
@@ -36,23 +41,31 @@ public class KThread {
      * @return  the current thread.
      */
     public static KThread currentThread() {
-        Lib.assertTrue(currentThread != null);
-        return currentThread;
+        Lib.assertTrue(currentThreads != null);
+
+        KThread thread = currentThreads[Machine.currentProcessor()];
+        Lib.assertTrue(thread != null);
+        return thread;
     }
     
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
-     * create an idle thread as well.
+     * create the idle threads as well.
      */
     public KThread() {
-        if (currentThread != null) {
+        if (currentThreads != null) {
             tcb = new TCB();
         }           
         else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+            readyQueue = ThreadedKernel.scheduler.newReadyQueue();
             readyQueue.acquire(this);       
 
-            currentThread = this;
+            numCPUs = Math.max(Machine.numProcessors(), 1);
+            currentThreads = new KThread[numCPUs];
+            idleThreads = new KThread[numCPUs];
+            wakingUp = new boolean[numCPUs];
+
+            currentThreads[Machine.currentProcessor()] = this;
             tcb = TCB.currentTCB();
             name = "main";
             restoreState();
@@ -167,7 +180,7 @@ public class KThread {
     private void begin() {
         Lib.debug(dbgThread, "Beginning thread: " + toString());
         
-        Lib.assertTrue(this == currentThread);
+        Lib.assertTrue(this == currentThread());
 
         restoreState();
 
@@ -185,16 +198,18 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
+        KThread currentThread = currentThread();
         Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
         
         Machine.interrupt().disable();
 //free all joined threads
-        while(!KThread.currentThread.JoinedThreads.isEmpty()){
-                KThread toFree = KThread.currentThread.JoinedThreads.poll();
-                toFree.status = statusReady;
-                KThread.readyQueue.waitForAccess(toFree);
+        while(!currentThread.JoinedThreads.isEmpty()){
+                KThread toFree = currentThread.JoinedThreads.poll();
+                toFree.ready();
         }
 
+        ThreadedKernel.scheduler.finish(currentThread);
+
         Machine.autoGrader().finishingCurrentThread();
 
         Lib.assertTrue(toBeDestroyed == null);
@@ -223,6 +238,7 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
+        KThread currentThread = currentThread();
         Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
         
         Lib.assertTrue(currentThread.status == statusRunning);
@@ -248,6 +264,7 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
+        KThread currentThread = currentThread();
         Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
         
         Lib.assertTrue(Machine.interrupt().disabled());
@@ -260,7 +277,8 @@ public class KThread {
 
     /**
      * Moves this thread to the ready state and adds this to the scheduler's
-     * ready queue.
+     * ready queue. On a multiprocessor, an idle processor is interrupted so
+     * that it can run the thread.
      */
     public void ready() {
         Lib.debug(dbgThread, "Ready thread: " + toString());
@@ -269,8 +287,10 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
         
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread()) {
             readyQueue.waitForAccess(this);
+            wakeIdleProcessor();
+        }
         
         Machine.autoGrader().readyThread(this);
     }
@@ -283,13 +303,13 @@ public class KThread {
      */
     public void join() {
         Lib.debug(dbgThread, "Joining to thread: " + toString());
-        Lib.assertTrue(this != currentThread);
+        Lib.assertTrue(this != currentThread());
         Lib.assertTrue(CheckNoCycles());
 
         boolean intStatus = Machine.interrupt().disable();      
 
         if(status != statusFinished){
-                JoinedThreads.add(KThread.currentThread);
+                JoinedThreads.add(KThread.currentThread());
                 KThread.sleep();
         }
         Machine.interrupt().restore(intStatus); 
@@ -298,7 +318,7 @@ public class KThread {
 
     //checks through joined threads and checks for cyclical dependency
     private boolean  CheckNoCycles(){
-        if(JoinedThreads.contains(currentThread)){
+        if(JoinedThreads.contains(currentThread())){
                 return false;
         }else{
                 Iterator<KThread> iter = JoinedThreads.iterator();
@@ -323,20 +343,129 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * Unless <tt>KThread.idleFastForward</tt> is false in
+     * <tt>nachos.conf</tt>, the idle thread skips simulated time forward to
+     * the next pending interrupt, rather than yielding once per tick until
+     * the interrupt occurs.
+     *
+     * <p>
+     * On a multiprocessor every processor has an idle thread, and the idle
+     * threads of the other processors start them running.
      */
     private static void createIdleThread() {
-        Lib.assertTrue(idleThread == null);
+        Lib.assertTrue(idleThreads[0] == null);
+
+        final boolean fastForward =
+            Config.getBoolean("KThread.idleFastForward", true);
+
+        Runnable idle = new Runnable() {
+            public void run() {
+                if (fastForward)
+                    idle();
+                else
+                    while (true) KThread.yield();
+            }
+        };
         
-        idleThread = new KThread(new Runnable() {
-            public void run() { while (true) yield(); }
-        });
+        KThread idleThread = new KThread(idle);
         idleThread.setName("idle");
+        idleThreads[0] = idleThread;
 
         Machine.autoGrader().setIdleThread(idleThread);
         
         idleThread.fork();
+
+        for (int cpu=1; cpu<numCPUs; cpu++) {
+            idleThread = new KThread(idle);
+            idleThread.setName("idle " + cpu);
+            idleThread.startProcessor(cpu);
+        }
+    }
+
+    /**
+     * Start another processor of a multiprocessor running this thread, its
+     * idle thread.
+     */
+    private void startProcessor(int cpu) {
+        Lib.assertTrue(status == statusNew);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        idleThreads[cpu] = this;
+        currentThreads[cpu] = this;
+
+        tcb.start(new Runnable() {
+                public void run() {
+                    runThread();
+                }
+            }, cpu);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the idle thread of the current processor.
+     */
+    private static KThread idleThread() {
+        return idleThreads[Machine.currentProcessor()];
     }
     
+    /**
+     * Run the idle thread. Whenever another thread is ready, yield to it;
+     * otherwise, let the machine skip ahead to the next interrupt, since
+     * nothing can become ready before then.
+     */
+    private static void idle() {
+        KThread idleThread = idleThread();
+        int cpu = Machine.currentProcessor();
+
+        Lib.assertTrue(currentThread() == idleThread);
+
+        while (true) {
+            boolean intStatus = Machine.interrupt().disable();
+
+            wakingUp[cpu] = false;
+
+            KThread nextThread = readyQueue.nextThread();
+            if (nextThread != null) {
+                idleThread.ready();
+                nextThread.run();
+            }
+            else {
+                Machine.interrupt().idle();
+            }
+
+            Machine.interrupt().restore(intStatus);
+        }
+    }
+
+    /**
+     * On a multiprocessor, interrupt another processor that is running its
+     * idle thread, if there is one, so that it looks at the ready queue
+     * rather than waiting for its next interrupt. A processor is only sent
+     * one such interrupt until it looks.
+     */
+    private static void wakeIdleProcessor() {
+        int cpu = Machine.currentProcessor();
+
+        // an idle processor looks at the ready queue itself
+        if (currentThreads[cpu] == idleThreads[cpu])
+            return;
+
+        for (int i=1; i<numCPUs; i++) {
+            int other = (cpu+i) % numCPUs;
+
+            if (currentThreads[other] == idleThreads[other] &&
+                !wakingUp[other]) {
+                wakingUp[other] = true;
+                Machine.interrupt().sendIPI(other, reschedule);
+                return;
+            }
+        }
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -344,7 +473,7 @@ public class KThread {
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
         if (nextThread == null)
-            nextThread = idleThread;
+            nextThread = idleThread();
 
         nextThread.run();
     }
@@ -374,16 +503,16 @@ public class KThread {
 
         Machine.yield();
 
-        currentThread.saveState();
+        currentThread().saveState();
 
-        Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+        Lib.debug(dbgThread, "Switching from: " + currentThread().toString()
                   + " to: " + toString());
 
-        currentThread = this;
+        currentThreads[Machine.currentProcessor()] = this;
 
         tcb.contextSwitch();
 
-        currentThread.restoreState();
+        currentThread().restoreState();
     }
 
     /**
@@ -391,13 +520,14 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-        Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+        Lib.debug(dbgThread, "Running thread: " + currentThread().toString());
         
         Lib.assertTrue(Machine.interrupt().disabled());
-        Lib.assertTrue(this == currentThread);
+        Lib.assertTrue(this == currentThread());
         Lib.assertTrue(tcb == TCB.currentTCB());
 
         Machine.autoGrader().runningThread(this);
+        ThreadedKernel.scheduler.restoreState(this);
         
         status = statusRunning;
 
@@ -409,12 +539,14 @@ public class KThread {
     }
 
     /**
-     * Prepare this thread to give up the processor. Kernel threads do not
-     * need to do anything here.
+     * Prepare this thread to give up the processor. Kernel threads only need
+     * to let the scheduler know.
      */
     protected void saveState() {
         Lib.assertTrue(Machine.interrupt().disabled());
-        Lib.assertTrue(this == currentThread);
+        Lib.assertTrue(this == currentThread());
+
+        ThreadedKernel.scheduler.saveState(this);
     }
 
     private static class PingTest implements Runnable {
@@ -426,7 +558,7 @@ public class KThread {
             for (int i=0; i<5; i++) {
                 System.out.println("*** thread " + which + " looped "
                                    + i + " times");
-                currentThread.yield();
+                KThread.yield();
             }
         }
 
@@ -521,7 +653,7 @@ public class KThread {
                 }
                 for(int i = 0; i<10; i++){
                         Lib.debug('f',name+" is running");
-                        currentThread.yield();
+                        KThread.yield();
                 }
 
                 Lib.debug('f',name+" is finished");
@@ -557,6 +689,11 @@ public class KThread {
     private TCB tcb;
     private ArrayDeque<KThread> JoinedThreads = null;
 
+    /** The <tt>WaitList</tt> this thread is blocked on, if any. */
+    WaitList waitList = null;
+    /** The threads before and after this one on its wait list. */
+    KThread waitPrev = null, waitNext = null;
+
     /**
      * Unique identifer for this thread. Used to deterministically compare
      * threads.
@@ -566,8 +703,21 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
-    private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
-    private static KThread idleThread = null;
+
+    /** The number of processors, or 1 if there are none. */
+    private static int numCPUs;
+    /** The thread each processor is running. */
+    private static KThread[] currentThreads = null;
+    /** The idle thread of each processor. */
+    private static KThread[] idleThreads = null;
+    /** Which idle processors have been interrupted to look for a thread. */
+    private static boolean[] wakingUp;
+
+    /** The handler of the interrupt sent to wake an idle processor. */
+    private static final Runnable reschedule = new Runnable() {
+        public void run() {
+        }
+    };
 
 }
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +23,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * that holding a lottery, and changing the tickets of a waiting thread, take
+ * <i>O(log n)</i> time. When the tickets of a thread change, the change is
+ * added to the queue it is waiting on, and through that queue to its owner,
+ * and so on along the chain of transfers.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -32,7 +37,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +47,415 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getLotteryState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * Each waiting thread is given a slot, and the tickets of the thread in
+     * each slot are kept in a Fenwick tree, which can find the total number
+     * of tickets in the slots before any slot, and the slot holding any
+     * ticket, in <i>O(log n)</i> time. Slots freed by departing threads are
+     * reused.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the owner gives up this queue, even if no thread takes it
+	    setOwner(null);
+
+	    LotteryState winner = pickNextThread();
+	    if (winner == null)
+		return null;
+
+	    remove(winner);
+
+	    winner.acquire(this);
+	    return winner.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    // this also takes its tickets away from the owner
+	    remove(state);
+	    return true;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, and return the winner
+	 * without removing it.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no thread is
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    long ticket = Math.min((long) (Lib.random() * totalTickets),
+				   totalTickets - 1);
+
+	    return slots[find(ticket)];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=0; slot<numSlots; slot++) {
+		if (slots[slot] != null) {
+		    System.out.print(" " + slots[slot].thread + " ("
+				     + slots[slot].effectiveTickets + ")");
+		}
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Give a slot to a waiting thread, holding its tickets.
+	 *
+	 * @param	state	the thread to add.
+	 */
+	void add(LotteryState state) {
+	    int slot;
+
+	    if (numFreeSlots > 0) {
+		slot = freeSlots[--numFreeSlots];
+	    }
+	    else {
+		if (numSlots == slots.length)
+		    grow();
+
+		slot = numSlots++;
+	    }
+
+	    slots[slot] = state;
+	    state.slot = slot;
+	    numWaiting++;
+
+	    addTickets(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Take a thread's slot away, along with its tickets.
+	 *
+	 * @param	state	the thread to remove.
+	 */
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+	    Lib.assertTrue(slots[slot] == state);
+
+	    addTickets(slot, -state.effectiveTickets);
+
+	    slots[slot] = null;
+	    state.slot = -1;
+	    state.waitQueue = null;
+	    numWaiting--;
+
+	    freeSlots[numFreeSlots++] = slot;
+	}
+
+	/**
+	 * Add tickets to the thread in a slot, and pass them on to the owner
+	 * of this queue.
+	 *
+	 * @param	slot	the slot whose tickets changed.
+	 * @param	delta	the number of tickets to add.
+	 */
+	void addTickets(int slot, long delta) {
+	    countTickets(slot, delta);
+
+	    if (owner != null)
+		owner.addEffectiveTickets(delta);
+	}
+
+	/**
+	 * Add tickets to the thread in a slot, without passing them on.
+	 *
+	 * @param	slot	the slot whose tickets changed.
+	 * @param	delta	the number of tickets to add.
+	 */
+	void countTickets(int slot, long delta) {
+	    totalTickets += delta;
+
+	    for (int i=slot+1; i<tree.length; i+=i&-i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Return the slot holding a ticket, counting tickets in slot order.
+	 */
+	private int find(long ticket) {
+	    int index = 0;
+
+	    for (int step=Integer.highestOneBit(numSlots); step>0; step>>=1) {
+		if (index+step <= numSlots && tree[index+step] <= ticket) {
+		    index += step;
+		    ticket -= tree[index];
+		}
+	    }
+
+	    return index;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree over them.
+	 */
+	private void grow() {
+	    slots = Arrays.copyOf(slots, slots.length*2);
+	    freeSlots = new int[slots.length];
+	    tree = new long[slots.length+1];
+
+	    for (int slot=0; slot<numSlots; slot++) {
+		if (slots[slot] == null)
+		    continue;
+
+		for (int i=slot+1; i<tree.length; i+=i&-i)
+		    tree[i] += slots[slot].effectiveTickets;
+	    }
+
+	    // no slot is free, or we would not be growing
+	    numFreeSlots = 0;
+	}
+
+	/**
+	 * Make a thread the owner of this queue, moving the tickets of the
+	 * waiting threads from the old owner, if any, to the new one.
+	 *
+	 * @param	owner	the new owner, or <tt>null</tt>.
+	 */
+	void setOwner(LotteryState owner) {
+	    if (!transferPriority || owner == this.owner)
+		return;
+
+	    if (this.owner != null)
+		this.owner.addEffectiveTickets(-totalTickets);
+
+	    this.owner = owner;
+
+	    if (owner != null)
+		owner.addEffectiveTickets(totalTickets);
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread in each slot, or <tt>null</tt> if the slot is free. */
+	private LotteryState[] slots = new LotteryState[8];
+	/** The Fenwick tree of tickets, indexed from 1. */
+	private long[] tree = new long[slots.length+1];
+	private int numSlots = 0, numWaiting = 0;
+	private int[] freeSlots = new int[slots.length];
+	private int numFreeSlots = 0;
+	private long totalTickets = 0;
+
+	/** The thread that last acquired this queue, if it transfers. */
+	private LotteryState owner = null;
     }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler: its own
+     * tickets, the tickets transferred to it, and the queue it is waiting on,
+     * if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the number of tickets held by the associated thread itself.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(long tickets) {
+	    long delta = tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    addEffectiveTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on a queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Add tickets to the effective tickets of the associated thread, and
+	 * pass them along the chain of threads it donates to. If the threads
+	 * are deadlocked, the chain can lead back to a thread already in it,
+	 * and the walk stops there.
+	 *
+	 * @param	delta	the number of tickets to add.
+	 */
+	void addEffectiveTickets(long delta) {
+	    if (delta == 0)
+		return;
+
+	    long walk = ++numWalks;
+
+	    LotteryState state = this;
+	    while (state != null && state.walk != walk) {
+		state.walk = walk;
+		state.effectiveTickets += delta;
+
+		LotteryQueue queue = state.waitQueue;
+		if (queue == null)
+		    return;
+
+		queue.countTickets(state.slot, delta);
+		state = queue.owner;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The number of tickets held by the associated thread itself. */
+	protected long tickets = priorityDefault;
+	/**
+	 * The number of tickets the associated thread holds, including those
+	 * transferred to it.
+	 */
+	protected long effectiveTickets = priorityDefault;
+
+	/** The queue the associated thread is waiting on, if any. */
+	LotteryQueue waitQueue = null;
+	/** The slot of the associated thread in its queue. */
+	int slot = -1;
+	/** The last walk along a chain of donations to reach this thread. */
+	long walk = 0;
+    }
+
+    /** The number of walks along chains of donations so far. */
+    private long numWalks = 0;
 }
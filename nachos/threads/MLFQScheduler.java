@@ -0,0 +1,396 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A multilevel feedback queue scheduler.
+ *
+ * <p>
+ * Each queue has several levels, each a FIFO queue, and always chooses the
+ * first thread of the highest nonempty level. A thread at level <i>i</i> is
+ * given a quantum of <tt>2<sup>i</sup></tt> timer interrupts, and is only
+ * preempted by the timer once it has used up its quantum, at which point it
+ * is moved down a level. A thread that blocks before using up its quantum is
+ * moved up a level when it is woken, and if that puts it above the running
+ * thread, the running thread is preempted at the next timer interrupt. A
+ * thread that yields, or is preempted this way, keeps its level and whatever
+ * is left of its quantum.
+ *
+ * <p>
+ * So CPU-bound threads sink to the lower levels, where they run for longer
+ * between context switches, and threads that mostly wait for I/O stay at the
+ * higher levels, where they run as soon as they are woken. To keep the
+ * CPU-bound threads from starving, every thread is moved back to the highest
+ * level every <tt>boostInterval</tt> ticks.
+ *
+ * <p>
+ * The priority of a thread is its level counted from the bottom, so the
+ * highest level has priority <tt>priorityMaximum</tt>. This scheduler does
+ * not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multilevel feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+    }
+
+    /**
+     * Allocate a new multilevel feedback thread queue.
+     *
+     * @param	transferPriority	ignored, since this scheduler does not
+     *					transfer priority.
+     * @return	a new multilevel feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return priorityMaximum - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).setLevel(priorityMaximum - priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Count a timer interrupt against the quantum of the running thread, and
+     * preempt it only if it has used up its quantum, or if a thread at a
+     * higher level has been woken since the last timer interrupt. This is
+     * also where all threads are periodically boosted to the highest level.
+     *
+     * @param	thread	the running thread.
+     * @return	<tt>true</tt> if <i>thread</i> should yield.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	long time = Machine.timer().getTime();
+	if (time - lastBoostTime >= boostInterval) {
+	    lastBoostTime = time;
+	    numBoosts++;
+	}
+
+	ThreadState state = getThreadState(thread);
+	int level = state.getLevel();
+
+	// a thread woken at a higher level need not wait out the quantum
+	boolean preempt = (wokenLevel < level);
+	wokenLevel = numLevels;
+
+	if (--state.quantumLeft > 0)
+	    return preempt;
+
+	state.level = Math.min(state.level+1, numLevels-1);
+	state.quantumLeft = quantum(state.level);
+	return true;
+    }
+
+    /**
+     * The number of levels in each queue.
+     */
+    public static final int numLevels = 4;
+
+    /**
+     * The priority of a thread at the lowest level.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The priority of a thread at the highest level, which is where new
+     * threads start.
+     */
+    public static final int priorityMaximum = numLevels-1;
+
+    /**
+     * The number of ticks between moving all threads back to the highest
+     * level.
+     */
+    public static final long boostInterval = 100 * Stats.TimerTicks;
+
+    /**
+     * Return the quantum of a thread at a level.
+     *
+     * @param	level	the level, where 0 is the highest.
+     * @return	the number of timer interrupts the thread may run for.
+     */
+    public static int quantum(int level) {
+	return 1 << level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO queue for each level. A bit is set
+     * in <tt>nonEmpty</tt> for each level that has a thread waiting, so that
+     * the highest such level can be found without looking at the others.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	@SuppressWarnings("unchecked")
+	MLFQQueue() {
+	    levels = new ArrayDeque[numLevels];
+	    for (int i=0; i<numLevels; i++)
+		levels[i] = new ArrayDeque<ThreadState>();
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(nonEmpty == 0);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    remove(next);
+	    next.waitQueue = null;
+
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    remove(state);
+	    state.waitQueue = null;
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    catchUp();
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    return levels[Integer.numberOfTrailingZeros(nonEmpty)].peekFirst();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    catchUp();
+
+	    for (int i=0; i<numLevels; i++) {
+		for (ThreadState state : levels[i])
+		    System.out.print(" " + state.thread + " (level " + i + ")");
+	    }
+	    System.out.println();
+	}
+
+	void add(ThreadState state) {
+	    catchUp();
+
+	    int level = state.getLevel();
+	    levels[level].addLast(state);
+	    nonEmpty |= 1 << level;
+	}
+
+	void remove(ThreadState state) {
+	    catchUp();
+
+	    int level = state.getLevel();
+	    Lib.assertTrue(levels[level].remove(state));
+	    if (levels[level].isEmpty())
+		nonEmpty &= ~(1 << level);
+	}
+
+	/**
+	 * If all threads have been boosted since this queue last looked,
+	 * move the threads waiting at the lower levels to the highest level,
+	 * behind those already there.
+	 */
+	private void catchUp() {
+	    if (boosts == numBoosts)
+		return;
+
+	    boosts = numBoosts;
+
+	    for (int i=1; i<numLevels; i++) {
+		levels[0].addAll(levels[i]);
+		levels[i].clear();
+	    }
+
+	    if (!levels[0].isEmpty())
+		nonEmpty = 1;
+	}
+
+	/** The waiting threads at each level. */
+	private ArrayDeque<ThreadState>[] levels;
+	/** A bit for each level with waiting threads. */
+	private int nonEmpty = 0;
+	/** The number of boosts this queue has caught up with. */
+	private long boosts = numBoosts;
+    }
+
+    /**
+     * The scheduling state of a thread under a multilevel feedback queue
+     * scheduler.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the level of the associated thread, first moving it to the
+	 * highest level if all threads have been boosted since it last
+	 * looked.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (boosts != numBoosts) {
+		boosts = numBoosts;
+		level = 0;
+		quantumLeft = quantum(0);
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Move the associated thread to a level, with a full quantum.
+	 *
+	 * @param	level	the new level.
+	 */
+	public void setLevel(int level) {
+	    MLFQQueue waitQueue = this.waitQueue;
+
+	    if (waitQueue != null)
+		waitQueue.remove(this);
+
+	    getLevel();
+	    this.level = level;
+	    quantumLeft = quantum(level);
+
+	    if (waitQueue != null)
+		waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on a queue. If it
+	 * is not running, it was blocked, or is new, and is moved up a level
+	 * with a full quantum.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(MLFQQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    if (thread != KThread.currentThread()) {
+		int level = getLevel();
+		if (level > 0)
+		    level--;
+
+		this.level = level;
+		quantumLeft = quantum(level);
+
+		wokenLevel = Math.min(wokenLevel, level);
+	    }
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread, where 0 is the highest. */
+	protected int level = 0;
+	/** The timer interrupts left in the quantum of the associated thread. */
+	protected int quantumLeft = quantum(0);
+
+	/** The queue the associated thread is waiting on, if any. */
+	MLFQQueue waitQueue = null;
+	/** The number of boosts the associated thread has caught up with. */
+	long boosts = numBoosts;
+    }
+
+    private long numBoosts = 0;
+    private long lastBoostTime = 0;
+    /** The highest level of any thread woken since the last timer interrupt. */
+    private int wokenLevel = numLevels;
+}
@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +24,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a binary heap ordered by effective
+ * priority, so that adding, removing, and reordering a thread take
+ * <i>O(log n)</i> time. Each thread caches its effective priority. When it
+ * changes, only the queue the thread is waiting on, and the thread owning
+ * that queue, are updated, and so on along the chain of donations; no queue
+ * is ever scanned.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -72,8 +79,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +96,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -123,7 +134,12 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+     * threads are kept in a binary heap, in which a thread comes before its
+     * children if it has a higher effective priority, or the same effective
+     * priority and has been waiting longer. Each thread records its index
+     * in the heap, so that it can be moved when its effective priority
+     * changes.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +158,37 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    // the owner gives up this queue, even if no thread takes it
+	    setOwner(null);
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    remove(next);
+	    updateDonation();
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    remove(state);
+	    state.waitQueue = null;
+
+	    // the owner loses whatever the thread was donating
+	    ThreadState owner = updateDonation();
+	    if (owner != null)
+		owner.update();
+
+	    return true;
 	}
 
 	/**
@@ -154,13 +199,176 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    return (size > 0) ? heap[0] : null;
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    ThreadState[] waiting = Arrays.copyOf(heap, size);
+	    Arrays.sort(waiting, new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+		    }
+		});
+
+	    for (int i=0; i<waiting.length; i++) {
+		System.out.print(" " + waiting[i].thread + " ("
+				 + waiting[i].effectivePriority + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a thread to the heap.
+	 *
+	 * @param	state	the thread to add.
+	 */
+	void add(ThreadState state) {
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+
+	    state.waitTime = numWaits++;
+	    state.heapIndex = size;
+	    heap[size++] = state;
+	    siftUp(state.heapIndex);
+	}
+
+	/**
+	 * Remove a thread from anywhere in the heap.
+	 *
+	 * @param	state	the thread to remove.
+	 */
+	void remove(ThreadState state) {
+	    int index = state.heapIndex;
+	    Lib.assertTrue(heap[index] == state);
+
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    state.heapIndex = -1;
+
+	    if (index < size) {
+		place(last, index);
+		siftUp(index);
+		siftDown(last.heapIndex);
+	    }
+	}
+
+	/**
+	 * Restore the heap order after the effective priority of a thread in
+	 * the heap has changed.
+	 *
+	 * @param	state	the thread whose priority changed.
+	 */
+	void reorder(ThreadState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+	}
+
+	private void siftUp(int index) {
+	    ThreadState state = heap[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		place(heap[parent], index);
+		index = parent;
+	    }
+
+	    place(state, index);
+	}
+
+	private void siftDown(int index) {
+	    ThreadState state = heap[index];
+
+	    while (true) {
+		int child = 2*index + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+
+		if (!before(heap[child], state))
+		    break;
+
+		place(heap[child], index);
+		index = child;
+	    }
+
+	    place(state, index);
+	}
+
+	private void place(ThreadState state, int index) {
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.effectivePriority != b.effectivePriority)
+		return a.effectivePriority > b.effectivePriority;
+	    else
+		return a.waitTime < b.waitTime;
+	}
+
+	/**
+	 * Make a thread the owner of this queue, moving the priority this
+	 * queue donates from the old owner, if any, to the new one.
+	 *
+	 * @param	owner	the new owner, or <tt>null</tt>.
+	 */
+	void setOwner(ThreadState owner) {
+	    if (!transferPriority || owner == this.owner)
+		return;
+
+	    ThreadState oldOwner = this.owner;
+	    this.owner = owner;
+
+	    if (donation < 0)
+		return;
+
+	    if (oldOwner != null) {
+		oldOwner.donations[donation]--;
+		oldOwner.update();
+	    }
+
+	    if (owner != null) {
+		owner.donations[donation]++;
+		owner.update();
+	    }
+	}
+
+	/**
+	 * Recompute the priority this queue donates to its owner, after the
+	 * thread at the top of the heap, or its effective priority, may have
+	 * changed.
+	 *
+	 * @return	the owner, if the priority donated to it has changed, or
+	 *		<tt>null</tt>.
+	 */
+	ThreadState updateDonation() {
+	    if (!transferPriority)
+		return null;
+
+	    int newDonation = (size > 0) ? heap[0].effectivePriority : -1;
+
+	    if (newDonation == donation)
+		return null;
+
+	    int oldDonation = donation;
+	    donation = newDonation;
+
+	    if (owner == null)
+		return null;
+
+	    if (oldDonation >= 0)
+		owner.donations[oldDonation]--;
+	    if (newDonation >= 0)
+		owner.donations[newDonation]++;
+
+	    return owner;
 	}
 
 	/**
@@ -168,6 +376,20 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The waiting threads, in heap order. */
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	/** The number of threads that have waited on this queue. */
+	private long numWaits = 0;
+
+	/** The thread that last acquired this queue, if it donates to it. */
+	private ThreadState owner = null;
+	/**
+	 * The highest effective priority of the waiting threads, which this
+	 * queue donates to its owner, or -1 if no thread is waiting.
+	 */
+	private int donation = -1;
     }
 
     /**
@@ -205,8 +427,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +441,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    update();
 	}
 
 	/**
@@ -236,7 +457,12 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+
+	    propagate(waitQueue.updateDonation());
 	}
 
 	/**
@@ -250,12 +476,66 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
-	}	
+	    if (this.waitQueue == waitQueue)
+		this.waitQueue = null;
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Recompute the effective priority of the associated thread, after
+	 * its priority or the priorities donated to it may have changed, and
+	 * pass any change on along the chain of donations.
+	 */
+	void update() {
+	    propagate(this);
+	}
+
+	private void propagate(ThreadState state) {
+	    while (state != null) {
+		int newPriority = state.priority;
+		for (int p=priorityMaximum; p>newPriority; p--) {
+		    if (state.donations[p] > 0) {
+			newPriority = p;
+			break;
+		    }
+		}
+
+		if (newPriority == state.effectivePriority)
+		    return;
+
+		state.effectivePriority = newPriority;
+
+		PriorityQueue waitQueue = state.waitQueue;
+		if (waitQueue == null)
+		    return;
+
+		waitQueue.reorder(state);
+		state = waitQueue.updateDonation();
+	    }
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/**
+	 * The effective priority of the associated thread: the highest of its
+	 * own priority and the priorities donated to it.
+	 */
+	protected int effectivePriority = -1;
+
+	/**
+	 * The number of queues owned by the associated thread that donate
+	 * each priority to it.
+	 */
+	int[] donations = new int[priorityMaximum+1];
+
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitQueue = null;
+	/** The index of the associated thread in the heap of its queue. */
+	int heapIndex = -1;
+	/** When the associated thread started waiting, for FIFO order. */
+	long waitTime;
     }
 }
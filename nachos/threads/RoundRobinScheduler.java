@@ -2,15 +2,12 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended
- * to the end of a list. The next thread to receive access is always the first
- * thread in the list. This causes access to be given on a first-come
- * first-serve basis.
+ * with <tt>WaitList</tt>s, which link the threads through themselves. When a
+ * thread begins waiting for access, it is appended to the end of a list. The
+ * next thread to receive access is always the first thread in the list. This
+ * causes access to be given on a first-come first-serve basis.
  */
 public class RoundRobinScheduler extends Scheduler {
     /**
@@ -55,7 +52,7 @@ public class RoundRobinScheduler extends Scheduler {
 	    if (waitQueue.isEmpty())
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    return waitQueue.removeFirst();
 	}
 
 	/**
@@ -69,16 +66,28 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 *
+	 * @param	thread	the thread that has stopped waiting.
+	 * @return	<tt>true</tt> if the thread was in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 
-	    for (Iterator i=waitQueue.iterator(); i.hasNext(); )
-		System.out.print((KThread) i.next() + " ");
+	    for (KThread t=waitQueue.first(); t!=null; t=t.waitNext)
+		System.out.print(t + " ");
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	private WaitList waitQueue = new WaitList();
     }
 }
@@ -52,6 +52,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run, which
+     * <tt>KThread</tt> creates once, along with the first thread. Schedulers
+     * that treat the ready queue differently from other queues should
+     * override this. The default is <tt>newThreadQueue(false)</tt>.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +166,63 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt> when <i>thread</i> is about
+     * to start running, with interrupts disabled. Schedulers that charge
+     * threads for the time they run should override this. The default does
+     * nothing.
+     *
+     * @param	thread	the thread that is about to run.
+     */
+    public void restoreState(KThread thread) {
+    }
+
+    /**
+     * Called by <tt>KThread.saveState()</tt> when <i>thread</i> is about to
+     * give up the processor, with interrupts disabled. The default does
+     * nothing.
+     *
+     * @param	thread	the thread that is about to stop running.
+     */
+    public void saveState(KThread thread) {
+    }
+
+    /**
+     * Called by <tt>Alarm.timerInterrupt()</tt> on every timer interrupt, with
+     * interrupts disabled, to decide whether <i>thread</i> should be
+     * preempted. Schedulers that give threads a quantum longer than one timer
+     * interrupt should override this. The default always preempts.
+     *
+     * @param	thread	the thread that was running when the timer
+     *			interrupt occurred.
+     * @return	<tt>true</tt> if <i>thread</i> should yield.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	return true;
+    }
+
+    /**
+     * Called by the alarm interrupt handler when it wakes <i>thread</i>,
+     * with interrupts disabled, to decide whether <i>current</i> should yield
+     * to it at once rather than at the next timer interrupt. The default
+     * never preempts.
+     *
+     * @param	thread	the thread that was just woken.
+     * @param	current	the thread that was running when the alarm went off.
+     * @return	<tt>true</tt> if <i>current</i> should yield.
+     */
+    public boolean preempts(KThread thread, KThread current) {
+	return false;
+    }
+
+    /**
+     * Called by <tt>KThread.finish()</tt> when <i>thread</i> is finishing,
+     * with interrupts disabled. Schedulers that reserve resources for a
+     * thread should release them here. The default does nothing.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void finish(KThread thread) {
+    }
 }
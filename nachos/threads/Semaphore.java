@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.function.BooleanSupplier;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value.
  * A semaphore has only two operations:
@@ -48,6 +50,45 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait at most <i>ticks</i> ticks for this semaphore to become
+     * non-zero and decrement it. A thread that times out is removed from the
+     * wait queue, so a later <tt>V()</tt> is not lost on it.
+     *
+     * @param	ticks	the most ticks to wait for. If this is not positive,
+     *			the semaphore is only decremented if it is already
+     *			non-zero.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean tryP(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean acquired;
+
+	if (value > 0) {
+	    value--;
+	    acquired = true;
+	}
+	else if (ticks <= 0) {
+	    acquired = false;
+	}
+	else {
+	    final KThread thread = KThread.currentThread();
+
+	    waitQueue.waitForAccess(thread);
+	    acquired = ThreadedKernel.alarm.sleepFor(ticks,
+		new BooleanSupplier() {
+		    public boolean getAsBoolean() {
+			return waitQueue.remove(thread);
+		    }
+		});
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
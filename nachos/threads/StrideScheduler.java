@@ -0,0 +1,514 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A scheduler that gives threads access in proportion to their tickets,
+ * deterministically.
+ *
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, like a
+ * lottery scheduler. Each thread also has a <i>pass</i>, and a <i>stride</i>
+ * inversely proportional to its tickets. The next thread to be dequeued is
+ * always the thread with the lowest pass. Whenever a thread stops running,
+ * its pass is advanced by its stride for every <tt>Stats.TimerTicks</tt>
+ * ticks it ran, so a thread that blocks or yields early is charged only for
+ * the time it used. Over any interval, a thread gets about as much time as
+ * its share of the tickets says it should, to within one quantum, rather
+ * than only on average.
+ *
+ * <p>
+ * A thread does not earn credit while it is blocked: when it is woken and
+ * made ready again, its pass is raised to at least the ready queue's global
+ * pass, which is the pass of the thread last chosen to run. Waiting on other
+ * queues leaves the pass alone.
+ *
+ * <p>
+ * Through queues that transfer priority, the owner is treated as if it had
+ * both the lowest pass of the threads waiting for it, so that it is chosen
+ * as soon as any of them would be, and the sum of their tickets, so that it
+ * is charged as they would be.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a binary heap ordered by effective
+ * pass, so that choosing a thread takes <i>O(log n)</i> time.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, which keeps the global pass.
+     *
+     * @return	a new stride ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new StrideQueue(false, true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getThreadState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+	state.tickets = priority;
+	state.update();
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public void restoreState(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	state.running = true;
+	state.runStart = Machine.timer().getTime();
+    }
+
+    public void saveState(KThread thread) {
+	ThreadState state = getThreadState(thread);
+
+	state.charge();
+	state.running = false;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. The stride of a thread with
+     * <i>n</i> tickets is <tt>stride1 / n</tt>.
+     */
+    public static final long stride1 = 1L << 30;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the waiting thread with the lowest
+     * pass. The waiting threads are kept in a binary heap, in which a thread
+     * comes before its children if it has a lower effective pass, or the
+     * same effective pass and has been waiting longer.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority, boolean readyQueue) {
+	    this.transferPriority = transferPriority;
+	    this.readyQueue = readyQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the owner gives up this queue, even if no thread takes it
+	    setOwner(null);
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    remove(next);
+
+	    if (readyQueue)
+		globalPass = Math.max(globalPass, next.pass);
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    remove(state);
+
+	    // the owner loses the thread's pass and tickets
+	    if (transferPriority && owner != null)
+		owner.update();
+
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    return (size > 0) ? heap[0] : null;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++) {
+		System.out.print(" " + heap[i].thread + " (pass "
+				 + heap[i].effectivePass + ")");
+	    }
+	    System.out.println();
+	}
+
+	void add(ThreadState state) {
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+
+	    state.waitTime = numWaits++;
+	    state.heapIndex = size;
+	    heap[size++] = state;
+	    siftUp(state.heapIndex);
+
+	    totalTickets += state.effectiveTickets;
+	}
+
+	void remove(ThreadState state) {
+	    int index = state.heapIndex;
+	    Lib.assertTrue(heap[index] == state);
+
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    state.heapIndex = -1;
+	    state.waitQueue = null;
+
+	    if (index < size) {
+		place(last, index);
+		siftUp(index);
+		siftDown(last.heapIndex);
+	    }
+
+	    totalTickets -= state.effectiveTickets;
+	}
+
+	void reorder(ThreadState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+	}
+
+	private void siftUp(int index) {
+	    ThreadState state = heap[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		place(heap[parent], index);
+		index = parent;
+	    }
+
+	    place(state, index);
+	}
+
+	private void siftDown(int index) {
+	    ThreadState state = heap[index];
+
+	    while (true) {
+		int child = 2*index + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+
+		if (!before(heap[child], state))
+		    break;
+
+		place(heap[child], index);
+		index = child;
+	    }
+
+	    place(state, index);
+	}
+
+	private void place(ThreadState state, int index) {
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.effectivePass != b.effectivePass)
+		return a.effectivePass < b.effectivePass;
+	    else
+		return a.waitTime < b.waitTime;
+	}
+
+	/**
+	 * Make a thread the owner of this queue, moving what this queue
+	 * donates from the old owner, if any, to the new one.
+	 *
+	 * @param	owner	the new owner, or <tt>null</tt>.
+	 */
+	void setOwner(ThreadState owner) {
+	    if (!transferPriority || owner == this.owner)
+		return;
+
+	    ThreadState oldOwner = this.owner;
+	    this.owner = owner;
+
+	    if (oldOwner != null) {
+		oldOwner.owned.remove(this);
+		oldOwner.update();
+	    }
+
+	    if (owner != null) {
+		owner.owned.add(this);
+		owner.update();
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer priority from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The waiting threads, in heap order. */
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	/** The number of threads that have waited on this queue. */
+	private long numWaits = 0;
+
+	/** <tt>true</tt> if this is the ready queue. */
+	final boolean readyQueue;
+
+	/** For the ready queue, the pass of the thread last chosen to run. */
+	long globalPass = 0;
+	/** The total effective tickets of the waiting threads. */
+	long totalTickets = 0;
+
+	/** The thread that last acquired this queue, if it donates to it. */
+	private ThreadState owner = null;
+    }
+
+    /**
+     * The scheduling state of a thread under a stride scheduler.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on a queue. If it
+	 * is being woken onto the ready queue, rather than yielding, its pass
+	 * is raised to the global pass, so that it cannot use time spent
+	 * blocked as credit.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(StrideQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    if (waitQueue.readyQueue && !running &&
+		pass < waitQueue.globalPass) {
+		pass = waitQueue.globalPass;
+		update();
+	    }
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.owner != null)
+		waitQueue.owner.update();
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue acquired.
+	 */
+	public void acquire(StrideQueue waitQueue) {
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Advance the pass of the associated thread by its stride for each
+	 * timer interval it has run since it last started running.
+	 */
+	void charge() {
+	    long ran = Machine.timer().getTime() - runStart;
+
+	    long stride = Math.max(stride1 / effectiveTickets, 1);
+	    pass += stride * ran / Stats.TimerTicks;
+	    update();
+	}
+
+	/**
+	 * Recompute the effective pass and tickets of the associated thread,
+	 * after its own or those of the threads waiting for it may have
+	 * changed, and pass any change on along the chain of donations.
+	 */
+	void update() {
+	    ThreadState state = this;
+
+	    while (state != null) {
+		long newPass = state.pass;
+		long newTickets = state.tickets;
+
+		for (StrideQueue queue : state.owned) {
+		    if (queue.size > 0)
+			newPass = Math.min(newPass, queue.heap[0].effectivePass);
+		    newTickets += queue.totalTickets;
+		}
+
+		if (newPass == state.effectivePass &&
+		    newTickets == state.effectiveTickets)
+		    return;
+
+		StrideQueue waitQueue = state.waitQueue;
+
+		if (waitQueue != null)
+		    waitQueue.totalTickets += newTickets - state.effectiveTickets;
+
+		state.effectivePass = newPass;
+		state.effectiveTickets = newTickets;
+
+		if (waitQueue == null)
+		    return;
+
+		waitQueue.reorder(state);
+
+		state = waitQueue.transferPriority ? waitQueue.owner : null;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The number of tickets held by the associated thread itself. */
+	protected long tickets = priorityDefault;
+	/** The pass of the associated thread itself. */
+	protected long pass = 0;
+
+	/**
+	 * The tickets of the associated thread, plus those of the threads
+	 * waiting for it.
+	 */
+	protected long effectiveTickets = priorityDefault;
+	/**
+	 * The lowest of the pass of the associated thread and the passes of
+	 * the threads waiting for it.
+	 */
+	protected long effectivePass = 0;
+
+	/** The queues owned by the associated thread that donate to it. */
+	ArrayList<StrideQueue> owned = new ArrayList<StrideQueue>();
+
+	/** The queue the associated thread is waiting on, if any. */
+	StrideQueue waitQueue = null;
+	/** The index of the associated thread in the heap of its queue. */
+	int heapIndex = -1;
+	/** When the associated thread started waiting, for FIFO order. */
+	long waitTime;
+	/** <tt>true</tt> if the associated thread is running. */
+	boolean running = false;
+	/** When the associated thread last started running. */
+	long runStart;
+    }
+}
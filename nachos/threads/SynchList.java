@@ -1,57 +1,240 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue is a ring buffer that holds at most a fixed number of elements.
+ * When it is full, <tt>add()</tt> waits for room, and <tt>offer()</tt>
+ * rejects the element instead. An unbounded queue grows its buffer as
+ * needed. <tt>drainTo()</tt> removes many elements while holding the lock
+ * once, and the queue keeps count of the most elements it has held and of
+ * the elements it has rejected.
  */
-public class SynchList {
+public class SynchList<T> {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new synchronized queue with no limit on its length.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(unbounded);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds at most <i>capacity</i>
+     * elements.
+     *
+     * @param	capacity	the most elements the queue may hold.
+     */
+    @SuppressWarnings("unchecked")
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.capacity = capacity;
+	items = (T[]) new Object[Math.min(capacity, initialLength)];
+
 	lock = new Lock();
-	listEmpty = new Condition(lock);
+	listEmpty = new Condition2(lock);
+	listFull = new Condition2(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, waiting for room if
+     * the queue is full. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
-    public void add(Object o) {
+    public void add(T o) {
 	Lib.assertTrue(o != null);
 	
 	lock.acquire();
-	list.add(o);
+	while (count == capacity)
+	    listFull.sleep();
+	enqueue(o);
 	listEmpty.wake();
 	lock.release();
     }
 
+    /**
+     * Add the specified object to the end of the queue, unless the queue is
+     * full. If another thread is waiting in <tt>removeFirst()</tt>, it is
+     * woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(T o) {
+	Lib.assertTrue(o != null);
+
+	boolean added;
+
+	lock.acquire();
+	if (count == capacity) {
+	    numRejected++;
+	    added = false;
+	}
+	else {
+	    enqueue(o);
+	    listEmpty.wake();
+	    added = true;
+	}
+	lock.release();
+
+	return added;
+    }
+
     /**
      * Remove an object from the front of the queue, blocking until the queue
      * is non-empty if necessary.
      *
      * @return	the element removed from the front of the queue.
      */
-    public Object removeFirst() {
-	Object o;
+    public T removeFirst() {
+	T o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+	o = dequeue();
+	listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>ticks</i> ticks for the queue to become non-empty.
+     *
+     * @param	ticks	the most ticks to wait for.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was still empty after <i>ticks</i>
+     *		ticks.
+     */
+    public T poll(long ticks) {
+	T o = null;
+	long deadline = Machine.timer().getTime() + ticks;
+
+	lock.acquire();
+	while (count == 0) {
+	    long left = deadline - Machine.timer().getTime();
+	    if (left <= 0)
+		break;
+
+	    listEmpty.sleepFor(left);
+	}
+	if (count > 0) {
+	    o = dequeue();
+	    listFull.wake();
+	}
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue, without
+     * waiting, and add them in order to <i>c</i>.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the most objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<? super T> c, int max) {
+	int n = 0;
+
+	lock.acquire();
+	while (n < max && count > 0) {
+	    c.add(dequeue());
+	    n++;
+	}
+	if (n > 0)
+	    listFull.wakeAll();
 	lock.release();
 
+	return n;
+    }
+
+    /**
+     * Return the number of objects in the queue.
+     *
+     * @return	the length of the queue.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Return the most objects the queue may hold.
+     *
+     * @return	the capacity of the queue, or <tt>Integer.MAX_VALUE</tt> if
+     *		it is unbounded.
+     */
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Return the most objects the queue has held at once.
+     *
+     * @return	the greatest length of the queue.
+     */
+    public int getHighWater() {
+	return highWater;
+    }
+
+    /**
+     * Return the number of objects <tt>offer()</tt> has rejected because the
+     * queue was full.
+     *
+     * @return	the number of objects rejected.
+     */
+    public long getNumRejected() {
+	return numRejected;
+    }
+
+    private void enqueue(T o) {
+	if (count == items.length)
+	    grow();
+
+	items[(first + count) % items.length] = o;
+	count++;
+	highWater = Math.max(highWater, count);
+    }
+
+    private T dequeue() {
+	T o = items[first];
+	items[first] = null;
+	first = (first + 1) % items.length;
+	count--;
+
 	return o;
     }
 
+    /**
+     * Double the length of the buffer, up to the capacity, moving the
+     * objects to its start.
+     */
+    @SuppressWarnings("unchecked")
+    private void grow() {
+	int length = (int) Math.min((long) items.length * 2, capacity);
+	T[] larger = (T[]) new Object[length];
+
+	for (int i=0; i<count; i++)
+	    larger[i] = items[(first + i) % items.length];
+
+	items = larger;
+	first = 0;
+    }
+
     private static class PingTest implements Runnable {
-	PingTest(SynchList ping, SynchList pong) {
+	PingTest(SynchList<Integer> ping, SynchList<Integer> pong) {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
@@ -61,16 +244,16 @@ public class SynchList {
 		pong.add(ping.removeFirst());
 	}
 
-	private SynchList ping;
-	private SynchList pong;
+	private SynchList<Integer> ping;
+	private SynchList<Integer> pong;
     }
 
     /**
      * Test that this module is working.
      */
     public static void selfTest() {
-	SynchList ping = new SynchList();
-	SynchList pong = new SynchList();
+	SynchList<Integer> ping = new SynchList<Integer>();
+	SynchList<Integer> pong = new SynchList<Integer>(2);
 
 	new KThread(new PingTest(ping, pong)).setName("ping").fork();
 
@@ -79,10 +262,27 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	Lib.assertTrue(pong.offer(0) && pong.offer(1) && !pong.offer(2));
+	Lib.assertTrue(pong.getNumRejected() == 1);
+
+	ArrayList<Integer> drained = new ArrayList<Integer>();
+	Lib.assertTrue(pong.drainTo(drained, 5) == 2 && pong.size() == 0);
+	Lib.assertTrue(drained.get(0) == 0 && drained.get(1) == 1);
     }
 
-    private LinkedList<Object> list;
+    /** The capacity of a queue with no limit on its length. */
+    private static final int unbounded = Integer.MAX_VALUE;
+    /** The length of a new buffer. */
+    private static final int initialLength = 16;
+
+    private T[] items;
+    private int first = 0, count = 0;
+    private int capacity;
+    private int highWater = 0;
+    private long numRejected = 0;
+
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
+    private Condition2 listFull;
 }
-
@@ -91,6 +91,19 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a thread waiting for access has stopped
+     * waiting without receiving access, for example because it timed out.
+     * If the thread was donating priority through this queue, it no longer
+     * does.
+     *
+     * @param	thread	the thread that has stopped waiting.
+     * @return	<tt>true</tt> if the thread was waiting on this queue, or
+     *		<tt>false</tt> if it was not, for example because it has
+     *		already been returned from <tt>nextThread()</tt>.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -87,4 +87,9 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static FairScheduler dummy9 = null;
+    private static MLFQScheduler dummy10 = null;
+    private static EDFScheduler dummy11 = null;
+    private static WorkStealingScheduler dummy12 = null;
 }
@@ -0,0 +1,146 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A FIFO list of waiting threads, linked through the threads themselves.
+ *
+ * <p>
+ * A blocked thread waits on at most one list at a time, so each
+ * <tt>KThread</tt> carries the links for the list it is on, and adding,
+ * removing and detaching threads allocate nothing. Any thread on the list can
+ * be removed in constant time, which is what a thread whose wait timed out
+ * needs. Like the rest of the thread queues, a wait list must only be used
+ * with interrupts disabled.
+ */
+class WaitList {
+    /**
+     * Allocate a new, empty wait list.
+     */
+    WaitList() {
+    }
+
+    /**
+     * Test if there are no threads on this list.
+     *
+     * @return	<tt>true</tt> if this list is empty.
+     */
+    boolean isEmpty() {
+	return head == null;
+    }
+
+    /**
+     * Return the first thread on this list, without removing it.
+     *
+     * @return	the first thread, or <tt>null</tt> if the list is empty.
+     */
+    KThread first() {
+	return head;
+    }
+
+    /**
+     * Add a thread to the end of this list. The thread must not be on any
+     * wait list.
+     *
+     * @param	thread	the thread to add.
+     */
+    void add(KThread thread) {
+	Lib.assertTrue(thread.waitList == null);
+
+	thread.waitList = this;
+	thread.waitPrev = tail;
+	thread.waitNext = null;
+
+	if (tail == null)
+	    head = thread;
+	else
+	    tail.waitNext = thread;
+
+	tail = thread;
+    }
+
+    /**
+     * Remove the first thread from this list.
+     *
+     * @return	the first thread, or <tt>null</tt> if the list is empty.
+     */
+    KThread removeFirst() {
+	KThread thread = head;
+	if (thread != null)
+	    unlink(thread);
+
+	return thread;
+    }
+
+    /**
+     * Remove a thread from anywhere in this list.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was on this list.
+     */
+    boolean remove(KThread thread) {
+	if (thread.waitList != this)
+	    return false;
+
+	unlink(thread);
+	return true;
+    }
+
+    /**
+     * Empty this list in one step, and return its threads, still chained
+     * together. The caller must pass each of them to <tt>next()</tt>, with
+     * interrupts still disabled, before any is removed again.
+     *
+     * @return	the first thread that was on the list, or <tt>null</tt> if it
+     *		was empty.
+     */
+    KThread detachAll() {
+	KThread thread = head;
+	head = tail = null;
+	return thread;
+    }
+
+    /**
+     * Take a thread returned by <tt>detachAll()</tt> off its chain.
+     *
+     * @param	thread	a detached thread.
+     * @return	the thread that followed it, or <tt>null</tt> if it was the
+     *		last.
+     */
+    static KThread next(KThread thread) {
+	KThread next = thread.waitNext;
+
+	thread.waitList = null;
+	thread.waitPrev = thread.waitNext = null;
+
+	return next;
+    }
+
+    public String toString() {
+	StringBuilder buf = new StringBuilder("[");
+	for (KThread thread = head; thread != null; thread = thread.waitNext) {
+	    if (thread != head)
+		buf.append(", ");
+	    buf.append(thread);
+	}
+	return buf.append("]").toString();
+    }
+
+    private void unlink(KThread thread) {
+	if (thread.waitPrev == null)
+	    head = thread.waitNext;
+	else
+	    thread.waitPrev.waitNext = thread.waitNext;
+
+	if (thread.waitNext == null)
+	    tail = thread.waitPrev;
+	else
+	    thread.waitNext.waitPrev = thread.waitPrev;
+
+	thread.waitList = null;
+	thread.waitPrev = thread.waitNext = null;
+    }
+
+    private KThread head = null;
+    private KThread tail = null;
+}
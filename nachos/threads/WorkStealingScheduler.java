@@ -0,0 +1,253 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A round-robin scheduler that keeps a separate run queue for each
+ * processor, and lets a processor with nothing to run steal from the others.
+ *
+ * <p>
+ * A thread that becomes ready is added to the end of the run queue of the
+ * processor it last ran on, or, if it has never run, of the processor that
+ * made it ready. Each processor runs the threads in its own queue in FIFO
+ * order. When a processor's queue is empty, it steals the most recently
+ * added thread from the longest other queue, and that thread then belongs
+ * to the thief.
+ *
+ * <p>
+ * There is one run queue for each processor of the machine (see
+ * <tt>Processor.numCPUs</tt>), and a thread is always chosen from the queue
+ * of the processor that will run it. The queues are only used with
+ * interrupts disabled, which on a multiprocessor means under the kernel
+ * lock, so they need no locks of their own. A steal is counted in
+ * <tt>Stats</tt> when a processor takes a thread from another processor's
+ * queue, and a migration when a thread runs on a different processor than
+ * it last ran on. The length of each queue can be queried.
+ *
+ * <p>
+ * Only the ready queue is split this way. Other queues are FIFO queues, as
+ * under a round-robin scheduler.
+ */
+public class WorkStealingScheduler extends RoundRobinScheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+	numCPUs = Math.max(Machine.numProcessors(), 1);
+
+	runQueues = new RunQueue[numCPUs];
+	for (int i=0; i<numCPUs; i++)
+	    runQueues[i] = new RunQueue();
+    }
+
+    /**
+     * Return the ready queue, which is made up of the run queues of all the
+     * processors.
+     *
+     * @return	the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new ReadyQueue();
+    }
+
+    /**
+     * Return the number of processors, which is the number of run queues.
+     *
+     * @return	the number of processors.
+     */
+    public int getNumCPUs() {
+	return numCPUs;
+    }
+
+    /**
+     * Return the processor running the current thread.
+     *
+     * @return	the number of the current processor.
+     */
+    public int getCurrentCPU() {
+	return currentCPU();
+    }
+
+    /**
+     * Return the number of threads in a processor's run queue.
+     *
+     * @param	cpu	the number of the processor.
+     * @return	the length of its run queue.
+     */
+    public int getQueueLength(int cpu) {
+	return runQueues[cpu].threads.size();
+    }
+
+    /**
+     * Return the most threads there have been in a processor's run queue.
+     *
+     * @param	cpu	the number of the processor.
+     * @return	the greatest length of its run queue.
+     */
+    public int getMaxQueueLength(int cpu) {
+	return runQueues[cpu].maxLength;
+    }
+
+    /**
+     * Return the average number of threads in a processor's run queue,
+     * sampled whenever that processor chooses a thread to run.
+     *
+     * @param	cpu	the number of the processor.
+     * @return	the average length of its run queue.
+     */
+    public double getAverageQueueLength(int cpu) {
+	RunQueue queue = runQueues[cpu];
+
+	return (queue.numDispatches == 0) ? 0 :
+	    (double) queue.totalLength / queue.numDispatches;
+    }
+
+    /**
+     * Return the processor that is running, as a run queue index.
+     */
+    private int currentCPU() {
+	return Machine.currentProcessor() % numCPUs;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Where a thread last ran, and which run queue it is waiting in.
+     */
+    private static class ThreadState {
+	/** The processor the thread last ran on, or -1 if it never ran. */
+	int cpu = -1;
+	/** The run queue the thread is in, or -1 if it is not ready. */
+	int queue = -1;
+    }
+
+    /**
+     * The threads ready to run on one processor.
+     */
+    private static class RunQueue {
+	void add(KThread thread) {
+	    threads.addLast(thread);
+	    maxLength = Math.max(maxLength, threads.size());
+	}
+
+	ArrayDeque<KThread> threads = new ArrayDeque<KThread>();
+	int maxLength = 0;
+	long totalLength = 0;
+	long numDispatches = 0;
+    }
+
+    private class ReadyQueue extends ThreadQueue {
+	/**
+	 * Add a thread to the end of the run queue of the processor it last
+	 * ran on, or of the current processor if it has never run.
+	 *
+	 * @param	thread	the thread that is ready.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.queue == -1);
+
+	    int cpu = (state.cpu >= 0) ? state.cpu : currentCPU();
+
+	    runQueues[cpu].add(thread);
+	    state.queue = cpu;
+	}
+
+	/**
+	 * Choose a thread for the current processor to run: the first thread
+	 * in its own run queue, or else the last thread in the longest other
+	 * run queue.
+	 *
+	 * @return	the thread to run, or <tt>null</tt> if no thread is
+	 *		ready.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int cpu = currentCPU();
+	    RunQueue own = runQueues[cpu];
+
+	    own.numDispatches++;
+	    own.totalLength += own.threads.size();
+
+	    KThread thread = own.threads.pollFirst();
+
+	    if (thread == null) {
+		RunQueue victim = null;
+		for (int i=0; i<numCPUs; i++) {
+		    if (victim == null ||
+			runQueues[i].threads.size() > victim.threads.size())
+			victim = runQueues[i];
+		}
+
+		// the longest queue is another processor's, since ours is empty
+		thread = victim.threads.pollLast();
+		if (thread == null)
+		    return null;
+
+		Machine.stats().numSteals++;
+	    }
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.cpu >= 0 && state.cpu != cpu)
+		Machine.stats().numMigrations++;
+
+	    state.cpu = cpu;
+	    state.queue = -1;
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numCPUs; i++)
+		Lib.assertTrue(runQueues[i].threads.isEmpty());
+
+	    getThreadState(thread).cpu = currentCPU();
+	}
+
+	/**
+	 * Remove a thread from the run queue it was added to.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was ready.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queue < 0)
+		return false;
+
+	    boolean removed = runQueues[state.queue].threads.remove(thread);
+	    state.queue = -1;
+	    return removed;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numCPUs; i++) {
+		System.out.print("cpu " + i + ":");
+		for (KThread thread : runQueues[i].threads)
+		    System.out.print(" " + thread);
+		System.out.println();
+	    }
+	}
+    }
+
+    private int numCPUs;
+    private RunQueue[] runQueues;
+}
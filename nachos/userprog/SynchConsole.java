@@ -57,6 +57,33 @@ public class SynchConsole {
 	return value;
     }
 
+    /**
+     * Return the next unsigned byte received, waiting at most <i>ticks</i>
+     * ticks for one to arrive.
+     *
+     * @param	ticks	the most ticks to wait for a byte.
+     * @return	the next byte read, or -1 if no byte arrived in time.
+     */
+    public int readByte(long ticks) {
+	int value;
+	boolean intStatus = Machine.interrupt().disable();
+	readLock.acquire();
+
+	if (readWait.tryP(ticks)) {
+	    charAvailable = false;
+
+	    value = console.readByte();
+	    Lib.assertTrue(value != -1);
+	}
+	else {
+	    value = -1;
+	}
+
+	readLock.release();
+	Machine.interrupt().restore(intStatus);
+	return value;
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
      *
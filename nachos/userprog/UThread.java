@@ -46,7 +46,8 @@ public class UThread extends KThread {
     }
 
     /**
-     * Restore state before receiving the processor again.
+     * Restore state before receiving the processor again. On a
+     * multiprocessor, this need not be the processor it last ran on.
      */      
     protected void restoreState() {
 	super.restoreState();
@@ -17,16 +17,18 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * exception handler of each processor.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
 	
-	Machine.processor().setExceptionHandler(new Runnable() {
-		public void run() { exceptionHandler(); }
-	    });
+	for (int cpu=0; cpu<Machine.numProcessors(); cpu++) {
+	    Machine.processor(cpu).setExceptionHandler(new Runnable() {
+		    public void run() { exceptionHandler(); }
+		});
+	}
     }
 
     /**
@@ -149,7 +149,7 @@ public class UserProcess {
         //assure vaddr is within bounds
         if((vaddr < 0) || (vaddr >= pageSize*stackPages)){return 0;}
 
-        byte[] memory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
 
 
         int bytesCopied = 0;
@@ -190,7 +190,7 @@ public class UserProcess {
             }
 
             //copy over the data and increment the bytesCopied
-            System.arraycopy(memory, paddr, data, (offset + bytesCopied), amount);
+            processor.readMemory(paddr, data, (offset + bytesCopied), amount);
             bytesCopied += amount;
         }
 
@@ -232,7 +232,7 @@ public class UserProcess {
         if((vaddr < 0) || (vaddr >= pageSize*stackPages))
             return 0;
 
-        byte[] memory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
 
         //trim amount of bytes to copy, if length would cuse an out of bounds read
         int copyLength;
@@ -270,7 +270,8 @@ public class UserProcess {
             }
 
             //copy over the data and increment the bytesCopied
-            System.arraycopy(data, (offset + bytesCopied), memory, (paddr + bytesCopied), amount);
+            //this also makes the processor forget any instructions it decoded from the page
+            processor.writeMemory((paddr + bytesCopied), data, (offset + bytesCopied), amount);
             bytesCopied += amount;
         }
 
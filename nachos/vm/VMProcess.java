@@ -43,9 +43,21 @@ public class VMProcess extends UserProcess {
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>. The TLB
+     * entries any processor still has for this process's pages are
+     * invalidated first, since the pages may then be given to another
+     * process.
      */
     protected void unloadSections() {
+	Processor processor = Machine.processor();
+
+	if (processor.hasTLB() && pageTable != null) {
+	    for (int i=0; i<pageTable.length; i++) {
+		if (pageTable[i] != null && pageTable[i].valid)
+		    processor.shootdownTLB(pageTable[i].ppn);
+	    }
+	}
+
 	super.unloadSections();
     }    
 